@@ -2199,6 +2199,114 @@
   (let [behavior (if (= behavior :same) nil behavior)]
     (. clojure.lang.Actor doBecome behavior args)))
 
+(defn delivery-stats
+  "Returns a map of statistics on the messages sent to actor from within
+  transactions. Such a message is either delivered eagerly, and processed
+  in a tentative turn that depends on the sending transaction, or deferred
+  until the transaction commits. The decision is based on how often the
+  actor's recent tentative turns aborted and how long they waited on their
+  dependency.
+
+  :tentative-turns, :aborted-turns and :dependency-wait-nanos describe the
+  recent tentative turns, :eager-sends and :deferred-sends count the
+  decisions."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [^clojure.lang.Actor actor]
+  (.getDeliveryStats actor))
+
+(defn send-after
+  "Sends a message with args to actor after delay-ms milliseconds.
+  Returns a timer that can be cancelled with cancel-send.
+
+  All timers share a single thread. When called in a transaction or in
+  a tentative turn, the delay only starts once it has committed; if it
+  doesn't commit, the message is never sent."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [delay-ms ^clojure.lang.Actor actor & args]
+  (. clojure.lang.Actor (doSendAfter delay-ms 0 actor args)))
+
+(defn send-every
+  "Sends a message with args to actor every period-ms milliseconds, the
+  first time after period-ms milliseconds, until cancelled with
+  cancel-send. Returns the timer. See send-after."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [period-ms ^clojure.lang.Actor actor & args]
+  (. clojure.lang.Actor (doSendAfter period-ms period-ms actor args)))
+
+(defn cancel-send
+  "Cancels a timer returned by send-after or send-every. Returns true if
+  this stopped a message from being sent, false if the timer had already
+  fired (for send-after) or was already cancelled."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [^clojure.lang.TimingWheel$Timeout timer]
+  (.cancel timer))
+
+(defn await-actors
+  "Blocks the current thread until no actor has messages left to
+  process, or until timeout-ms milliseconds have elapsed. Returns
+  logical false if returning due to timeout, logical true otherwise."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [timeout-ms]
+  (. clojure.lang.Actor (await timeout-ms)))
+
+(defn shutdown-actors
+  "Drains and stops the actor system. From now on, sends from outside an
+  actor throw an exception, while the actors keep processing the
+  messages in their inboxes, including the messages they send each
+  other. Once no actor has messages left, or after timeout-ms
+  milliseconds (default 10000), all actors are stopped.
+
+  Returns a map with :drained, true if all messages were processed, and
+  :busy, a vector of the actors that still had messages left. Actors do
+  not run again until restart-actors is called.
+  See also restart-actors."
+  {:added "1.8-transactional-actors"
+   :static true}
+  ([] (shutdown-actors 10000))
+  ([timeout-ms]
+   (. clojure.lang.Actor (shutdown timeout-ms))))
+
+(defn restart-actors
+  "Lets the actor system run again after shutdown-actors: sends from
+  outside an actor are accepted again, and the actors that were stopped
+  with messages left go on processing them."
+  {:added "1.8-transactional-actors"
+   :static true}
+  []
+  (. clojure.lang.Actor (restart)))
+
+(defn actor-cell
+  "Creates and returns a cell holding state private to the current
+  actor, with an initial value of x. Only the actor that first uses the
+  cell may deref or change it, which it does without locking. Changes
+  made in a transaction are undone when the transaction retries, and
+  changes made in a tentative turn are undone when the turn aborts."
+  {:added "1.8-transactional-actors"
+   :tag clojure.lang.ActorCell
+   :static true}
+  [x]
+  (clojure.lang.ActorCell. x))
+
+(defn cell-reset!
+  "Sets the value of the actor cell to newval. Returns newval."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [^clojure.lang.ActorCell cell newval]
+  (.reset cell newval))
+
+(defn cell-swap!
+  "Sets the value of the actor cell to (apply f current-value-of-cell
+  args). Returns the new value."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [^clojure.lang.ActorCell cell f & args]
+  (.swap cell f args))
+
 (defn ref
   "Creates and returns a Ref with an initial value of x and zero or
   more options (in any order):
@@ -2210,6 +2318,9 @@
   :min-history (default 0)
   :max-history (default 10)
 
+  :async-watches (default from the clojure.stm.async-watches system
+  property, false if not set)
+
   If metadata-map is supplied, it will become the metadata on the
   ref. validate-fn must be nil or a side-effect-free fn of one
   argument, which will be passed the intended new state on any state
@@ -2218,10 +2329,16 @@
   transaction commit, when all refs have their final values.
 
   Normally refs accumulate history dynamically as needed to deal with
-  read demands. If you know in advance you will need history you can
-  set :min-history to ensure it will be available when first needed (instead
-  of after a read fault). History is limited, and the limit can be set
-  with :max-history."
+  read demands, and give it up again when readers stop needing it. If
+  you know in advance you will need history you can set :min-history to
+  ensure it will be available when first needed (instead of after a
+  read fault). History is limited, and the limit can be set with
+  :max-history.
+
+  Watches of a ref with :async-watches true are called on another
+  thread after the commit, so slow watch fns don't delay dosync. Each
+  ref still sees its changes in commit order, and exceptions thrown by
+  its watches go to the uncaught exception handler."
   {:added "1.0"
    :static true
    }
@@ -2233,6 +2350,8 @@
       (.setMaxHistory r (:max-history opts)))
     (when (:min-history opts)
       (.setMinHistory r (:min-history opts)))
+    (when (contains? opts :async-watches)
+      (.setAsyncWatches r (if (:async-watches opts) true false)))
     r)))
 
 (defn ^:private deref-future
@@ -2363,6 +2482,20 @@
   [^clojure.lang.Ref ref fun & args]
     (. ref (commute fun args)))
 
+(defn set-commute-combiner!
+  "Lets successive commutes of fun on the same ref in a transaction
+  collapse into one, so the commit replays one call instead of many.
+  combine is a fn of two arg seqs, of an earlier and a later commute,
+  that returns a single arg seq such that
+
+  (apply fun (apply fun x args1) args2) = (apply fun x (combine args1 args2))
+
+  Pass nil to remove fun's combiner. +, +', *, *', max, min and merge
+  have combiners."
+  {:added "1.8-transactional-actors"}
+  [fun combine]
+  (clojure.lang.LockingTransaction/setCombiner fun combine))
+
 (defn alter
   "Must be called in a transaction. Sets the in-transaction-value of
   ref to:
@@ -2408,28 +2541,153 @@
   ([^clojure.lang.Ref ref n]
     (.setMaxHistory ref n)))
 
+(defn derived-ref
+  "Returns a Ref whose value is (apply f (map deref sources)), kept up
+  to date by every transaction that changes one of the source Refs, as
+  part of its commit. A transaction reading it sees a value
+  consistent with the sources, including its own changes to them.
+  Derived Refs can't be written, and can be derived from each other.
+  Options:
+
+  :update g - when a source changes, computes the new value as
+  (g old-value old-source-values new-source-values), the source
+  values as vectors, instead of calling f again. For incrementally
+  maintained indexes, f is then only used for the initial value.
+
+  :meta and :validator as for ref.
+
+  The sources refer to the derived Ref for as long as they live. Can't
+  be called in a transaction."
+  {:added "1.8-transactional-actors"}
+  [f sources & options]
+  (let [opts (apply hash-map options)]
+    (setup-reference (clojure.lang.Ref/derive f (:update opts) (seq sources)) options)))
+
 (defn ensure
   "Must be called in a transaction. Protects the ref from modification
   by other transactions.  Returns the in-transaction-value of
-  ref. Allows for more concurrency than (ref-set ref @ref)"
+  ref. Allows for more concurrency than (ref-set ref @ref). See
+  the :validate-ensures flag of sync for a variant that doesn't block
+  writers."
   {:added "1.0"
    :static true}
   [^clojure.lang.Ref ref]
     (. ref (touch))
     (. ref (deref)))
 
+(defn retry
+  "Must be called in a transaction. Abandons the transaction and waits
+  until another transaction changes one of the Refs it has read, then
+  runs it again. In an or-else alternative, goes on with the next
+  alternative instead. In an actor's turn, the actor stops taking
+  messages instead of blocking its thread, and the whole turn runs
+  again once a Ref changes, after undoing the become and actor-cell
+  changes it made so far. A turn that already committed a
+  transaction, sent to an actor or an agent, spawned an actor or
+  started a timer can't run again, and blocks its thread instead.
+  Other side effects made before the retry, e.g. on atoms or IO, are
+  repeated when the turn runs again."
+  {:added "1.8-transactional-actors"}
+  []
+  (clojure.lang.LockingTransaction/doBlock))
+
+(defn memo-deref
+  "Must be called in a transaction. Returns (f @ref), but calls f only
+  once for each in-transaction value of ref, so deriving the same
+  value again, e.g. an index over the Ref's map, is free until the
+  transaction changes the Ref. f must be a pure fn of the value, and is
+  compared by identity, so it should be a var or a fn defined once
+  rather than a fn literal. Cached values are dropped when the
+  transaction ends or retries, see the :keep-memos flag of sync."
+  {:added "1.8-transactional-actors"}
+  [^clojure.lang.Ref ref f]
+  (clojure.lang.LockingTransaction/memo ref f))
+
+(defmacro or-else
+  "Must be called in a transaction. Evaluates the exprs in order until
+  one of them doesn't call retry, and returns its value. The effects
+  on Refs of an expr that calls retry are undone. If all of them call
+  retry, the transaction waits for a change to any Ref they read."
+  {:added "1.8-transactional-actors"}
+  [& exprs]
+  `(clojure.lang.LockingTransaction/orElse (list ~@(map (fn [e] `(fn [] ~e)) exprs))))
+
 (defmacro sync
-  "transaction-flags => TBD, pass nil for now
+  "transaction-flags => nil or a map of flags:
+
+  :read-only - when true, the transaction may only read Refs. Writing
+  to a Ref throws, ensure does nothing and sends to actors are
+  delivered on commit. Transactions that don't write skip the commit
+  protocol, whether they declare it or not.
+
+  :snapshot - when true, a :read-only transaction that never retries
+  for lack of history. Its read point is pinned, and while it runs,
+  commits keep every value of a Ref it may read, beyond :max-history.
+  For long reports over many Refs under write load, at the cost of
+  the memory held by that history.
+
+  :contention-manager - how the transaction resolves conflicts over
+  Refs it writes, see set-contention-manager!
+
+  :keep-memos - when true, the values cached by memo-deref are kept
+  when the transaction retries, and reused if their Refs haven't
+  changed. Otherwise each attempt starts with none.
+
+  :validate-ensures - when true, ensure doesn't hold the Ref's read
+  lock until commit, so writers aren't blocked. Instead the commit
+  checks that no one has written the Ref since, and retries if anyone
+  has. The transaction is just as safe from write skew, but may retry
+  where it would have made the writer wait. With the
+  clojure.stm.lock-stripes property set, a commit writing any Ref that
+  shares the ensured Ref's lock stripe also causes such a retry.
 
   Runs the exprs (in an implicit do) in a transaction that encompasses
   exprs and any nested calls.  Starts a transaction if none is already
-  running on this thread. Any uncaught exception will abort the
-  transaction and flow out of sync. The exprs may be run more than
-  once, but any effects on Refs will be atomic."
+  running on this thread. Flags only apply to the outermost transaction.
+  Any uncaught exception will abort the transaction and flow out of
+  sync. The exprs may be run more than once, but any effects on Refs
+  will be atomic."
   {:added "1.0"}
-  [flags-ignored-for-now & body]
-  `(. clojure.lang.LockingTransaction
-      (runInTransaction (fn [] ~@body))))
+  [flags & body]
+  (let [site (str *ns* ":" (:line (meta &form) "?"))]
+    `(. clojure.lang.LockingTransaction
+        (runInTransaction (fn [] ~@body) ~flags ~site))))
+
+(defn set-contention-manager!
+  "Sets how transactions that don't choose one in their flags resolve
+  conflicts over Refs they write. m is a clojure.lang.ContentionManager
+  or one of:
+
+  :default - the older transaction wins once it has run for 10ms
+  :greedy - the older transaction always wins at once
+  :karma - the transaction that has opened more Refs wins
+  :polka - :karma with randomized exponential waits
+  :backoff - no transaction is killed, the loser retries after a
+  randomized exponential pause
+
+  The initial value comes from the clojure.stm.contention-manager
+  system property."
+  {:added "1.8-transactional-actors"
+   :static true}
+  [m]
+  (clojure.lang.LockingTransaction/setContentionManager m))
+
+(defn conflict-stats
+  "Returns counts of the conflicts that made transactions retry. With
+  no args, returns a map from each sync or dosync call site, as
+  \"namespace:line\", to its counts, including total :retries. With a
+  Ref, returns the conflicts over that Ref, including :barges-won,
+  which don't cause a retry. The same numbers are available over JMX
+  as the clojure.lang:type=STM MBean."
+  {:added "1.8-transactional-actors"}
+  ([] (clojure.lang.ConflictStats/forSites))
+  ([^clojure.lang.Ref ref] (clojure.lang.ConflictStats/forRef ref)))
+
+(defn reset-conflict-stats!
+  "Clears the counts returned by conflict-stats."
+  {:added "1.8-transactional-actors"}
+  []
+  (clojure.lang.ConflictStats/reset))
 
 
 (defmacro io!
@@ -2971,6 +3229,19 @@
   (when (some identity maps)
     (reduce1 #(conj (or %1 {}) %2) maps)))
 
+(let [folding (fn [f]
+                (fn [args1 args2]
+                  (if-let [args (seq (concat args1 args2))]
+                    (list (apply f args))
+                    ())))]
+  (set-commute-combiner! + (folding +))
+  (set-commute-combiner! +' (folding +'))
+  (set-commute-combiner! * (folding *))
+  (set-commute-combiner! *' (folding *'))
+  (set-commute-combiner! max (folding max))
+  (set-commute-combiner! min (folding min))
+  (set-commute-combiner! merge (folding merge)))
+
 (defn merge-with
   "Returns a map that consists of the rest of the maps conj-ed onto
   the first.  If a key occurs in more than one map, the mapping(s)
@@ -4909,7 +5180,21 @@
   once, but any effects on Refs will be atomic."
   {:added "1.0"}
   [& exprs]
-  `(sync nil ~@exprs))
+  (with-meta `(sync nil ~@exprs) (meta &form)))
+
+(defn sync-batch
+  "Runs each of fns, fns of no args, as if in its own dosync, and
+  returns a vector of their values. Instead of one commit per fn, the
+  fns are grouped into transactions of up to 64 that commit at once,
+  and the groups run in parallel. A fn sees the effects of the fns
+  before it in its group, and is retried on its own when it conflicts.
+  A group that keeps conflicting, or in which a fn throws, runs each
+  of its fns in a transaction of its own. If fns throw, the others are
+  still committed and the first exception is thrown. In a transaction,
+  runs fns in order as part of it. Flags are as for sync."
+  {:added "1.8-transactional-actors"}
+  ([fns] (sync-batch nil fns))
+  ([flags fns] (clojure.lang.LockingTransaction/runBatch fns flags)))
 
 (defmacro with-precision
   "Sets the precision and rounding mode to be used for BigDecimal operations.
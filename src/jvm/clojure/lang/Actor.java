@@ -13,15 +13,25 @@
 package clojure.lang;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
-
-// TODO: garbage collection of actors
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Actors do not own a thread: an actor with messages in its inbox is scheduled on a carrier, a thread of
+// Agent.soloExecutor, which runs its turns until the inbox is empty. Idle actors are not referenced by the runtime,
+// and are garbage collected once no one refers to them.
 public class Actor implements Runnable {
 
-    private static class AbortEx extends Error{
+    private static class AbortEx extends LockingTransaction.Signal {
+        private static final long serialVersionUID = 1L;
     }
     private static final AbortEx abortex = new AbortEx();
 
@@ -31,11 +41,178 @@ public class Actor implements Runnable {
             return;
         if (!current.tentative())
             return;
+        long start = System.nanoTime();
         current.dependency.waitUntilFinished();
+        current.dependencyWaitNanos += System.nanoTime() - start;
         if (!current.dependency.committed())
             throw Actor.abortex;
     }
 
+    // Suspension.
+    // A turn whose transaction calls retry doesn't park its carrier. The turn ends, its message goes back to the front
+    // of the inbox, and the actor stays scheduled without running, so it takes no other messages. Once one of the refs
+    // the transaction read changes, the actor is handed to the executor and the turn runs again from the start.
+    // Tentative turns park their carrier instead, as they can't end before their dependency is known, and so do turns
+    // that already did something a replay would repeat: committed a transaction, sent a message to an actor or an
+    // agent, spawned an actor or started a timer. A become or cell write outside a transaction is undone before the
+    // replay, other side effects, e.g. on atoms or IO, are repeated.
+    private static class SuspendEx extends LockingTransaction.Signal {
+        private static final long serialVersionUID = 1L;
+    }
+    private static final SuspendEx suspendex = new SuspendEx();
+
+    // Both the end of the suspended turn and the waiter's wake-up count this down, the last one resumes the actor
+    private final AtomicInteger suspension = new AtomicInteger();
+
+    static boolean canSuspend() {
+        Actor current = CURRENT_ACTOR.get();
+        return current != null && !current.tentative() && current.replayable;
+    }
+
+    // Called when the current turn does something a replay would repeat
+    static void irrevocable() {
+        Actor current = CURRENT_ACTOR.get();
+        if (current != null)
+            current.replayable = false;
+    }
+
+    static LockingTransaction.Waiter suspender() {
+        final Actor actor = getEx();
+        actor.suspension.set(2);
+        return new LockingTransaction.Waiter(null) {
+            void resume() {
+                if (actor.suspension.decrementAndGet() == 0)
+                    Agent.soloExecutor.execute(actor);
+            }
+        };
+    }
+
+    static Error suspended() {
+        return suspendex;
+    }
+
+    // Adaptive delivery of messages sent in a transaction.
+    // A message sent in a transaction is either delivered eagerly, in which case the receiver processes it in a
+    // tentative turn that depends on the transaction, or it is deferred until the transaction commits. Eager delivery
+    // wins when transactions usually commit, but under contention the receiver keeps aborting turns and waiting on
+    // dependencies. Each receiver keeps a few counters on its tentative turns, which senders consult to decide.
+    static final boolean ADAPTIVE_DELIVERY =
+            System.getProperty("clojure.actor.adaptive-delivery", "true").equals("true");
+    static final int DELIVERY_WINDOW = 64; // counters are halved when this many tentative turns have been seen
+    static final int DELIVERY_MIN_TURNS = 8; // don't decide on fewer samples than this
+    static final int DELIVERY_PROBE_INTERVAL = 16; // while deferring, still deliver every n-th message eagerly
+    static final long DELIVERY_WAIT_NANOS = 1000000; // average dependency wait above which we defer
+
+    static final Keyword TENTATIVE_TURNS = Keyword.intern(null, "tentative-turns");
+    static final Keyword ABORTED_TURNS = Keyword.intern(null, "aborted-turns");
+    static final Keyword DEPENDENCY_WAIT_NANOS = Keyword.intern(null, "dependency-wait-nanos");
+    static final Keyword EAGER_SENDS = Keyword.intern(null, "eager-sends");
+    static final Keyword DEFERRED_SENDS = Keyword.intern(null, "deferred-sends");
+
+    // Life cycle of the actor system.
+    // Each actor counts the messages in its inbox or in progress, and started actors with pending messages are kept
+    // in a set of active actors. A global counter is incremented on every send, so that a scan over the active actors
+    // can tell whether the system is quiescent: no messages pending, and no messages sent during the scan.
+    private static final Set<Actor> active = Collections.newSetFromMap(new ConcurrentHashMap<Actor, Boolean>());
+    private static final AtomicLong sends = new AtomicLong();
+    // Both flags stay set after a shutdown, until restart is called.
+    private static volatile boolean draining = false; // no sends from outside actors are accepted
+    private static volatile boolean terminated = false; // actors stop after their current turn
+
+    static final Keyword DRAINED = Keyword.intern(null, "drained");
+    static final Keyword BUSY = Keyword.intern(null, "busy");
+
+    // Carrier affinity.
+    // When a turn sends a message to an idle actor, that actor is queued on the carrier running the turn, and runs
+    // there once the sender is idle, instead of waking up another thread. If the sender has more messages, the queued
+    // actors are handed to the executor instead. If a turn blocks or runs long, a background thread steals the actors
+    // queued on its carrier and hands them to the executor.
+    static final boolean AFFINITY = System.getProperty("clojure.actor.affinity", "true").equals("true");
+    static final long STEAL_AFTER_NANOS = 500000; // age of a turn after which the actors queued behind it are stolen
+    static final int STEALER_IDLE_SCANS = 1000; // empty scans after which the stealer parks until needed
+
+    private static final ThreadLocal<Carrier> CARRIER = new ThreadLocal<Carrier>();
+    private static final Set<Carrier> stealable = Collections.newSetFromMap(new ConcurrentHashMap<Carrier, Boolean>());
+    private static volatile boolean stealerIdle = false;
+    private static final Thread stealer;
+
+    static {
+        if (AFFINITY) {
+            stealer = new Thread(new Stealer(), "clojure-actor-stealer");
+            stealer.setDaemon(true);
+            stealer.start();
+        } else {
+            stealer = null;
+        }
+    }
+
+    static class Carrier {
+        // Only the carrier's own thread adds to the local queue, the stealer may take from it.
+        private final LinkedBlockingDeque<Actor> local = new LinkedBlockingDeque<Actor>();
+        private volatile long turnStart = 0; // start of the current turn, 0 if not in a turn
+
+        boolean inTurn() {
+            return turnStart != 0;
+        }
+
+        boolean hasLocal() {
+            return !local.isEmpty();
+        }
+
+        void push(Actor actor) {
+            local.addLast(actor);
+            stealable.add(this);
+            if (stealerIdle)
+                LockSupport.unpark(stealer);
+        }
+
+        Actor next() {
+            Actor actor = local.pollFirst();
+            if (local.isEmpty())
+                stealable.remove(this);
+            return actor;
+        }
+
+        void handOff() {
+            stealable.remove(this);
+            Actor actor;
+            while ((actor = local.pollLast()) != null)
+                Agent.soloExecutor.execute(actor);
+        }
+    }
+
+    static class Stealer implements Runnable {
+        public void run() {
+            int idleScans = 0;
+            while (true) {
+                if (stealable.isEmpty()) {
+                    if (++idleScans > STEALER_IDLE_SCANS) {
+                        stealerIdle = true;
+                        if (stealable.isEmpty())
+                            LockSupport.park(this);
+                        stealerIdle = false;
+                        idleScans = 0;
+                    }
+                } else {
+                    idleScans = 0;
+                    long now = System.nanoTime();
+                    for (Carrier carrier : stealable) {
+                        long start = carrier.turnStart;
+                        if (start != 0 && now - start > STEAL_AFTER_NANOS)
+                            carrier.handOff();
+                    }
+                }
+                LockSupport.parkNanos(STEAL_AFTER_NANOS);
+            }
+        }
+    }
+
+    // Timers.
+    // Messages scheduled with send-after and send-every share one timing wheel, so a pending timer costs an object
+    // rather than a sleeping thread. A timer scheduled in a transaction or tentative turn only starts once that
+    // committed, like a spawn.
+    static final TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 512, "clojure-actor-timer");
+
     static class Inbox {
         private final LinkedBlockingDeque<Message> q = new LinkedBlockingDeque<Message>();
 
@@ -45,11 +222,29 @@ public class Actor implements Runnable {
             q.put(message);
         }
 
-        Message take() throws InterruptedException {
-            return q.take();
+        Message poll() {
+            return q.poll();
+        }
+
+        void putFirst(Message message) {
+            q.addFirst(message);
+        }
+
+        boolean isEmpty() {
+            return q.isEmpty();
         }
     }
 
+    private final AtomicInteger pending = new AtomicInteger(); // messages in the inbox or being processed
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // on a carrier, or waiting for one
+    private volatile boolean started = false;
+    private volatile Thread thread = null; // the carrier running the current turn
+    // Handshake between a turn and shutdown, so that the interrupt meant for the turn never reaches the next task
+    // run by the carrier: shutdown only interrupts a RUNNING turn, and the turn waits for the interrupt to complete
+    // and clears it before it returns.
+    private static final int IDLE = 0, RUNNING = 1, INTERRUPTING = 2, INTERRUPTED = 3;
+    private final AtomicInteger turnState = new AtomicInteger(IDLE);
+
     static class Behavior {
         IFn body;
         ISeq args; // arguments to pass to call to body
@@ -71,10 +266,23 @@ public class Actor implements Runnable {
 
     private Behavior behavior;
     private final Inbox inbox = new Inbox();
+    private final IPersistentMap bindings; // binds *actor* to this
 
     private LockingTransaction.Info dependency = null;
     private List<Actor> spawned = new ArrayList<Actor>();
-    private Behavior oldBehavior = null;
+    private Behavior oldBehavior = null; // behavior at the start of this turn
+    private Map<ActorCell, Object> cells = null; // values of cells before this turn wrote them
+    private boolean replayable = false; // this turn can be suspended and run again from the start
+    private List<TimingWheel.Timeout> timers = new ArrayList<TimingWheel.Timeout>();
+
+    // Statistics on tentative turns, only written by this actor's own turns.
+    private volatile long tentativeTurns = 0;
+    private volatile long abortedTurns = 0;
+    private volatile long dependencyWaitNanos = 0;
+    // Delivery decisions, made by the senders.
+    private final AtomicLong eagerSends = new AtomicLong();
+    private final AtomicLong deferredSends = new AtomicLong();
+    private final AtomicLong contendedSends = new AtomicLong(); // sends that found this actor contended, probes included
 
     static class Message {
         final Actor receiver;
@@ -95,6 +303,7 @@ public class Actor implements Runnable {
 
     public Actor(IFn behaviorBody, ISeq behaviorArgs) {
         behavior = new Behavior(behaviorBody, behaviorArgs);
+        bindings = RT.map(RT.ACTOR, this);
     }
 
     static Actor getRunning() {
@@ -112,6 +321,11 @@ public class Actor implements Runnable {
         return dependency != null;
     }
 
+    // Cell writes outside a transaction are logged, to be undone if the turn aborts or is suspended
+    boolean undoable() {
+        return tentative() || replayable;
+    }
+
     public static Actor doSpawn(IFn behaviorBody, ISeq behaviorArgs) {
         Actor actor = new Actor(behaviorBody, behaviorArgs);
         Actor.start(actor); // might be delayed
@@ -127,9 +341,60 @@ public class Actor implements Runnable {
         else if (CURRENT_ACTOR.get() != null && CURRENT_ACTOR.get().tentative())
             // no tx running, but tentative turn: keep in actor
             CURRENT_ACTOR.get().spawned.add(actor);
-        else
+        else {
             // else: do immediately
-            Agent.soloExecutor.submit(actor);
+            irrevocable();
+            actor.started = true;
+            if (actor.pending.get() > 0)
+                active.add(actor);
+            if (!actor.inbox.isEmpty() && actor.scheduled.compareAndSet(false, true))
+                schedule(actor);
+        }
+    }
+
+    private static void schedule(Actor actor) {
+        Carrier carrier = CARRIER.get();
+        if (carrier != null && carrier.inTurn())
+            // sent from a turn: run on this carrier after the turn
+            carrier.push(actor);
+        else
+            Agent.soloExecutor.execute(actor);
+    }
+
+    public static TimingWheel.Timeout doSendAfter(long delayMillis, long periodMillis, final Actor receiver,
+                                                  final ISeq args) {
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout(new Runnable() {
+            public void run() {
+                sendTimed(receiver, args);
+            }
+        }, delayMillis, periodMillis, TimeUnit.MILLISECONDS);
+        Actor.startTimer(timeout); // might be delayed
+        return timeout;
+    }
+
+    static void startTimer(TimingWheel.Timeout timeout) {
+        if (LockingTransaction.getRunning() != null)
+            // tx running: keep in tx
+            LockingTransaction.getEx().addTimer(timeout);
+        else if (CURRENT_ACTOR.get() != null && CURRENT_ACTOR.get().tentative())
+            // no tx running, but tentative turn: keep in actor
+            CURRENT_ACTOR.get().timers.add(timeout);
+        else {
+            // else: start immediately
+            irrevocable();
+            wheel.start(timeout);
+        }
+    }
+
+    private static void sendTimed(Actor receiver, ISeq args) {
+        // Runs on the timer thread, so the message has no dependency. Dropped while the actor system shuts down.
+        if (draining)
+            return;
+        try {
+            dispatch(receiver, args);
+        } catch (InterruptedException e) {
+            // dropped
+        }
     }
 
     public static void doBecome(IFn behaviorBody, ISeq behaviorArgs) {
@@ -142,6 +407,10 @@ public class Actor implements Runnable {
             Actor.getEx().become(behavior);
     }
 
+    void logCell(ActorCell cell, Object oldval) {
+        cells = ActorCell.log(cells, cell, oldval);
+    }
+
     void become(Behavior newBehavior) {
         // Note: this always runs in the current actor (we're never setting the behavior of an actor running in another
         // thread), as become is only called by doBecome on the current actor.
@@ -151,79 +420,299 @@ public class Actor implements Runnable {
     }
 
     public static void doEnqueue(Actor receiver, ISeq args) throws InterruptedException {
+        if (draining && getRunning() == null)
+            throw new IllegalStateException("Actor system is shutting down, no messages accepted");
+        dispatch(receiver, args);
+    }
+
+    private static void dispatch(Actor receiver, ISeq args) throws InterruptedException {
         LockingTransaction.Info dependency = null;
-        if (LockingTransaction.getRunning() != null)
+        LockingTransaction tx = LockingTransaction.getRunning();
+        if (tx != null) {
+            if (tx.readOnly || tx.nesting > 0 || receiver.deferDelivery(tx)) {
+                // tx running, but read-only, in a nested sync that may run again, or receiver is contended:
+                // deliver on commit
+                receiver.deferredSends.incrementAndGet();
+                tx.deferMessage(new Message(receiver, args));
+                return;
+            }
             // tx running: tx = dependency
-            dependency = LockingTransaction.getEx().info;
-        else if (getRunning() != null && getRunning().tentative())
+            receiver.eagerSends.incrementAndGet();
+            dependency = tx.getInfo();
+        } else if (getRunning() != null && getRunning().tentative())
             // no tx running, but tentative turn: transitive dependency
             dependency = getRunning().dependency;
-        // else: no dependency
+        else
+            // no dependency
+            irrevocable();
         Message message = new Message(receiver, args, dependency);
         receiver.enqueue(message);
     }
 
+    static void enqueueDeferred(Message message) throws InterruptedException {
+        // Called after the transaction that sent message committed. The message can still depend on the turn of the
+        // actor that ran the transaction.
+        dispatch(message.receiver, message.args);
+    }
+
     private void enqueue(Message message) throws InterruptedException {
+        sends.incrementAndGet();
+        if (pending.incrementAndGet() == 1 && started)
+            active.add(this);
         inbox.enqueue(message);
+        if (started && scheduled.compareAndSet(false, true))
+            schedule(this);
     }
 
-    public void run() {
-        CURRENT_ACTOR.set(this);
+    // Marks this actor as no longer scheduled. Returns true if messages arrived meanwhile and this call scheduled the
+    // actor again, in which case the caller should keep running it.
+    private boolean release() {
+        scheduled.set(false);
+        return !inbox.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+
+    private boolean deferDelivery(LockingTransaction tx) {
+        if (!ADAPTIVE_DELIVERY)
+            return false;
+        // Keep the order of messages from one transaction to the same receiver
+        if (tx.hasDeferredMessageFor(this))
+            return true;
+        long turns = tentativeTurns;
+        if (turns < DELIVERY_MIN_TURNS)
+            return false;
+        boolean contended = abortedTurns * 4 > turns || dependencyWaitNanos / turns > DELIVERY_WAIT_NANOS;
+        if (!contended)
+            return false;
+        // Probe now and then, so the statistics reflect the current contention
+        return contendedSends.incrementAndGet() % DELIVERY_PROBE_INTERVAL != 0;
+    }
+
+    private void recordTentativeTurn(boolean aborted) {
+        long turns = tentativeTurns + 1;
+        long aborts = aborted ? abortedTurns + 1 : abortedTurns;
+        long wait = dependencyWaitNanos;
+        if (turns >= DELIVERY_WINDOW) {
+            // Decay, so old turns weigh less than recent ones
+            turns /= 2;
+            aborts /= 2;
+            wait /= 2;
+        }
+        abortedTurns = aborts;
+        dependencyWaitNanos = wait;
+        tentativeTurns = turns;
+    }
+
+    public IPersistentMap getDeliveryStats() {
+        return RT.map(
+                TENTATIVE_TURNS, tentativeTurns,
+                ABORTED_TURNS, abortedTurns,
+                DEPENDENCY_WAIT_NANOS, dependencyWaitNanos,
+                EAGER_SENDS, eagerSends.get(),
+                DEFERRED_SENDS, deferredSends.get());
+    }
+
+    private static boolean quiescent() {
+        long before = sends.get();
+        for (Actor actor : active) {
+            if (actor.pending.get() > 0)
+                return false;
+        }
+        return sends.get() == before;
+    }
+
+    private static boolean awaitQuiescence(long deadline) throws InterruptedException {
+        while (!quiescent()) {
+            if (System.nanoTime() - deadline >= 0)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    // Waits until no live actor has messages left to process, or until the timeout elapsed.
+    // Returns true if the actors became quiescent.
+    public static boolean await(long timeoutMillis) throws InterruptedException {
+        return awaitQuiescence(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    // Drains and stops the actor system: sends from outside actors are rejected, while the actors process the
+    // messages already in their inboxes (including those they send each other, and waiting for pending
+    // dependencies). After the actors became quiescent or the timeout elapsed, no more turns are started, and turns
+    // still running are interrupted.
+    // Returns a map with :drained, true if all messages were processed, and :busy, the actors that still had
+    // messages left. The actor system stays stopped until restart is called.
+    public static IPersistentMap shutdown(long timeoutMillis) throws InterruptedException {
+        draining = true;
+        boolean drained = await(timeoutMillis);
+        IPersistentVector busy = PersistentVector.EMPTY;
+        for (Actor actor : active) {
+            if (actor.pending.get() > 0)
+                busy = busy.cons(actor);
+        }
+        terminated = true;
+        for (Actor actor : active) {
+            if (actor.turnState.compareAndSet(RUNNING, INTERRUPTING)) {
+                actor.thread.interrupt();
+                actor.turnState.set(INTERRUPTED);
+            }
+        }
+        return RT.map(DRAINED, drained, BUSY, busy);
+    }
+
+    // Lets the actor system run again after a shutdown: sends are accepted again, and actors that were stopped with
+    // messages left go on processing them.
+    public static void restart() {
+        terminated = false;
+        draining = false;
+        for (Actor actor : active) {
+            if (!actor.inbox.isEmpty() && actor.scheduled.compareAndSet(false, true))
+                Agent.soloExecutor.execute(actor);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.get();
+    }
 
-        // Create bindings map that binds *actor* to this. Used below.
-        Map<Var, Object> m = new HashMap<Var, Object>();
-        m.put(RT.ACTOR, this);
-        IPersistentMap bindings = PersistentArrayMap.create(m);
+    public void run() {
+        Carrier carrier = null;
+        if (AFFINITY) {
+            carrier = CARRIER.get();
+            if (carrier == null)
+                CARRIER.set(carrier = new Carrier());
+        }
+        // Run this actor, and then the actors its turns woke up, as long as they keep this carrier busy
+        for (Actor next = this; next != null; next = carrier == null ? null : carrier.next())
+            next.runTurns(carrier);
+    }
 
+    private void runTurns(Carrier carrier) {
+        CURRENT_ACTOR.set(this);
         try {
             while (true) {
-                try {
-                    // TODO: end actor when it is no longer needed (garbage collection of actors)
-                    Message message = inbox.take();
-
-                    // If message has a dependency, this is a tentative turn
-                    if (message.dependency != null) {
-                        dependency = message.dependency;
-                        oldBehavior = behavior;
-                    }
+                if (terminated) {
+                    scheduled.set(false);
+                    return;
+                }
+                Message message = inbox.poll();
+                if (message == null) {
+                    if (release())
+                        continue;
+                    return;
+                }
+                if (!turn(message, carrier))
+                    // suspended: the actor runs again once woken, still marked as scheduled
+                    return;
+                if (carrier != null && carrier.hasLocal()) {
+                    if (inbox.isEmpty() && !release())
+                        // idle: run the actors woken up by this turn on this carrier
+                        return;
+                    // more messages for this actor: hand the actors woken up by this turn to other carriers
+                    carrier.handOff();
+                }
+            }
+        } finally {
+            CURRENT_ACTOR.remove();
+        }
+    }
 
-                    try {
-                        IFn behaviorInstance = (IFn) behavior.apply();
-
-                        // Bind *actor* to this
-                        // Note: the behavior is encapsulated in a "binding-conveyor", hence, the first action when
-                        // creating the behaviorInstance above is resetting its frame to the bindings that were present
-                        // when the behavior was defined. Here, we extend those bindings with one for *actor*.
-                        Var.pushThreadBindings(bindings);
-
-                        behaviorInstance.applyTo(message.args);
-                    } catch (AbortEx e) {
-                        throw e;
-                        // Below, catch everything except AbortEx
-                    } catch (Throwable e) {
-                        // TODO: graceful error handling. See error handling in Agent for a better solution.
-                        System.out.println("uncaught exception in actor: " + e.getMessage());
-                    }
+    // Returns false if the turn was suspended, and the actor has to wait before its next turn
+    private boolean turn(Message message, Carrier carrier) {
+        Object frame = Var.getThreadBindingFrame();
+        boolean suspended = false;
+        thread = Thread.currentThread();
+        turnState.set(RUNNING);
+        if (carrier != null)
+            carrier.turnStart = System.nanoTime();
+        try {
+            // If message has a dependency, this is a tentative turn
+            if (message.dependency != null)
+                dependency = message.dependency;
+            oldBehavior = behavior;
+            replayable = true;
+
+            try {
+                IFn behaviorInstance = (IFn) behavior.apply();
+
+                // Bind *actor* to this
+                // Note: the behavior is encapsulated in a "binding-conveyor", hence, the first action when
+                // creating the behaviorInstance above is resetting its frame to the bindings that were present
+                // when the behavior was defined. Here, we extend those bindings with one for *actor*.
+                Var.pushThreadBindings(bindings);
+
+                behaviorInstance.applyTo(message.args);
+            } catch (AbortEx e) {
+                throw e;
+            } catch (SuspendEx e) {
+                throw e;
+                // Below, catch everything except AbortEx and SuspendEx
+            } catch (Throwable e) {
+                // TODO: graceful error handling. See error handling in Agent for a better solution.
+                System.out.println("uncaught exception in actor: " + e.getMessage());
+            }
 
-                    abortIfDependencyAborted();
+            abortIfDependencyAborted();
 
-                    dependency = null;
-                    for (Actor actor : spawned) {
-                        Actor.start(actor);
-                    }
-                } catch (AbortEx e) {
-                    behavior = oldBehavior;
-                } finally {
-                    dependency = null;
-                    oldBehavior = null;
-                    spawned.clear();
-                }
+            if (dependency != null)
+                recordTentativeTurn(false);
+            dependency = null;
+            for (Actor actor : spawned) {
+                Actor.start(actor);
+            }
+            for (TimingWheel.Timeout timeout : timers) {
+                Actor.startTimer(timeout);
             }
-    } catch (InterruptedException ex) {
-            // interrupt thread
-    } finally {
-            Var.popThreadBindings();
+        } catch (AbortEx e) {
+            abortTurn();
+        } catch (SuspendEx e) {
+            // the turn runs again from the start
+            undoTurn();
+            inbox.putFirst(message);
+            suspended = true;
+        } catch (InterruptedException e) {
+            // Interrupted while waiting for the dependency: its outcome is unknown, so abort
+            abortTurn();
+        } finally {
+            dependency = null;
+            oldBehavior = null;
+            cells = null;
+            replayable = false;
+            spawned.clear();
+            timers.clear();
+            if (carrier != null)
+                carrier.turnStart = 0;
+            endTurn();
+            Var.resetThreadBindingFrame(frame);
+            if (!suspended && pending.decrementAndGet() == 0) {
+                active.remove(this);
+                if (pending.get() > 0) // a message arrived in between
+                    active.add(this);
+            }
+        }
+        // if the waiter was already woken, go on right away
+        return !suspended || suspension.decrementAndGet() == 0;
+    }
+
+    private void endTurn() {
+        if (!turnState.compareAndSet(RUNNING, IDLE)) {
+            // shutdown is interrupting this turn: wait for it, so that the interrupt does not outlive the turn
+            while (turnState.get() != INTERRUPTED)
+                Thread.yield();
+            Thread.interrupted();
+            turnState.set(IDLE);
         }
+        thread = null;
+    }
+
+    private void abortTurn() {
+        recordTentativeTurn(true);
+        undoTurn();
+    }
+
+    private void undoTurn() {
+        behavior = oldBehavior;
+        if (cells != null)
+            ActorCell.rollback(cells);
     }
 
 }
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) Rich Hickey. All rights reserved.
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Mutable state private to one actor.
+// As only the owning actor reads and writes a cell, no locks are needed. Writes are undone when the enclosing
+// transaction retries, when the enclosing tentative turn aborts, or when the turn is suspended to run again.
+public class ActorCell implements IDeref {
+
+    private Object val;
+    private Actor owner; // the actor that first used the cell, null if none yet
+
+    public ActorCell(Object val) {
+        this.val = val;
+        this.owner = Actor.getRunning();
+    }
+
+    private Actor checkOwner() {
+        Actor current = Actor.getRunning();
+        if (owner == null)
+            owner = current;
+        else if (owner != current)
+            throw new IllegalStateException("Actor cell used outside its owning actor");
+        return current;
+    }
+
+    public Object deref() {
+        checkOwner();
+        return val;
+    }
+
+    public Object reset(Object newval) {
+        Actor current = checkOwner();
+        LockingTransaction tx = LockingTransaction.getRunning();
+        if (tx != null)
+            // tx running: undo if tx retries
+            tx.logCell(this, val);
+        else if (current != null && current.undoable())
+            // no tx running, but tentative or replayable turn: undo if the turn aborts or is suspended
+            current.logCell(this, val);
+        // else: nothing to undo
+        val = newval;
+        return newval;
+    }
+
+    public Object swap(IFn f, ISeq args) {
+        return reset(f.applyTo(RT.cons(deref(), args)));
+    }
+
+    // Records the value to restore. Only the first write in a transaction or turn is kept.
+    static Map<ActorCell, Object> log(Map<ActorCell, Object> undo, ActorCell cell, Object oldval) {
+        if (undo == null)
+            undo = new HashMap<ActorCell, Object>();
+        if (!undo.containsKey(cell))
+            undo.put(cell, oldval);
+        return undo;
+    }
+
+    static void rollback(Map<ActorCell, Object> undo) {
+        for (Map.Entry<ActorCell, Object> e : undo.entrySet())
+            e.getKey().val = e.getValue();
+    }
+
+}
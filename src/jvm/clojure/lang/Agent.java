@@ -252,7 +252,11 @@ static void dispatchAction(Action action){
 		nested.set(nested.get().cons(action));
 		}
 	else
+		{
+		//a suspended actor turn can't run again once this is sent
+		Actor.irrevocable();
 		action.agent.enqueue(action);
+		}
 }
 
 void enqueue(Action action){
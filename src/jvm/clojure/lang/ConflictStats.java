@@ -0,0 +1,186 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+//counts of the conflicts that made transactions retry, kept per ref and per sync call site.
+//nothing is allocated until a ref or site has its first conflict.
+public class ConflictStats{
+
+static final int LOCK_TIMEOUT = 0; //couldn't get the ref's write lock in time
+static final int STALE = 1;        //the ref was committed after the read point
+static final int FAULT = 2;        //no version of the ref old enough for the read point
+static final int BARGED = 3;       //killed by another transaction
+static final int WAIT = 4;         //waited for the ref's writer to finish
+static final int BARGE_LOST = 5;   //the ref's writer couldn't be killed
+static final int BARGE_WON = 6;    //killed the ref's writer, not a retry
+
+static final Keyword[] NAMES = {
+		Keyword.intern(null, "lock-timeouts"),
+		Keyword.intern(null, "stale"),
+		Keyword.intern(null, "history-faults"),
+		Keyword.intern(null, "barged"),
+		Keyword.intern(null, "waits"),
+		Keyword.intern(null, "barges-lost"),
+		Keyword.intern(null, "barges-won")};
+
+static final Keyword RETRIES = Keyword.intern(null, "retries");
+
+final AtomicLongArray counts = new AtomicLongArray(NAMES.length);
+final AtomicLong retries = new AtomicLong();
+
+static final ConcurrentHashMap<Object, ConflictStats> sites = new ConcurrentHashMap<Object, ConflictStats>();
+static final Map<Ref, ConflictStats> refs = Collections.synchronizedMap(new WeakHashMap<Ref, ConflictStats>());
+
+void record(int reason){
+	counts.incrementAndGet(reason);
+}
+
+//refs don't retry, transactions do, so only sites have :retries
+IPersistentMap toMap(boolean site){
+	ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+	for(int i = 0; i < NAMES.length; i++)
+		m = m.assoc(NAMES[i], counts.get(i));
+	if(site)
+		m = m.assoc(RETRIES, retries.get());
+	return m.persistent();
+}
+
+static void recordRef(Ref ref, int reason){
+	ConflictStats s = ref.stats;
+	if(s == null)
+		{
+		Ref.STATS.compareAndSet(ref, null, new ConflictStats());
+		s = ref.stats;
+		refs.put(ref, s);
+		register();
+		}
+	s.record(reason);
+}
+
+//a retry of a transaction started at site, for reason
+static void recordRetry(Object site, int reason){
+	if(site == null)
+		return;
+	ConflictStats s = sites.get(site);
+	if(s == null)
+		{
+		ConflictStats fresh = new ConflictStats();
+		s = sites.putIfAbsent(site, fresh);
+		if(s == null)
+			{
+			s = fresh;
+			register();
+			}
+		}
+	s.retries.incrementAndGet();
+	s.record(reason);
+}
+
+static public IPersistentMap forRef(Ref ref){
+	ConflictStats s = ref.stats;
+	return (s == null ? new ConflictStats() : s).toMap(false);
+}
+
+static public IPersistentMap forSites(){
+	ITransientMap m = PersistentHashMap.EMPTY.asTransient();
+	for(Map.Entry<Object, ConflictStats> e : sites.entrySet())
+		m = m.assoc(e.getKey(), e.getValue().toMap(true));
+	return m.persistent();
+}
+
+static public void reset(){
+	sites.clear();
+	synchronized(refs)
+		{
+		for(Ref ref : refs.keySet())
+			ref.stats = null;
+		refs.clear();
+		}
+}
+
+public interface STMMBean{
+	long getRetries();
+
+	String[] getSites();
+
+	String[] getRefs();
+
+	void reset();
+}
+
+static class STM implements STMMBean{
+	public long getRetries(){
+		long n = 0;
+		for(ConflictStats s : sites.values())
+			n += s.retries.get();
+		return n;
+	}
+
+	public String[] getSites(){
+		ArrayList<String> ret = new ArrayList<String>();
+		for(Map.Entry<Object, ConflictStats> e : sites.entrySet())
+			ret.add(e.getKey() + " " + e.getValue().toMap(true));
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public String[] getRefs(){
+		ArrayList<String> ret = new ArrayList<String>();
+		synchronized(refs)
+			{
+			for(Map.Entry<Ref, ConflictStats> e : refs.entrySet())
+				ret.add("ref " + e.getKey().id + " " + e.getValue().toMap(false));
+			}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	public void reset(){
+		ConflictStats.reset();
+	}
+}
+
+static final AtomicBoolean registered = new AtomicBoolean();
+
+//the MBean appears with the first conflict, so programs without any don't load JMX.
+//starting JMX can take a while, so it's done off the thread that had the conflict
+static void register(){
+	if(registered.compareAndSet(false, true))
+		{
+		Thread t = new Thread(new Runnable(){
+			public void run(){
+				try
+					{
+					ManagementFactory.getPlatformMBeanServer()
+							.registerMBean(new StandardMBean(new STM(), STMMBean.class),
+							               new ObjectName("clojure.lang:type=STM"));
+					}
+				catch(Exception e)
+					{
+					//no JMX, the stats are still available from clojure.core/conflict-stats
+					}
+			}
+		}, "clojure-stm-stats");
+		t.setDaemon(true);
+		t.start();
+		}
+}
+}
@@ -0,0 +1,106 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.Random;
+
+//decides what a transaction does when a ref it wants to write is claimed by another running transaction
+//managers are shared between threads, so they should keep no state of their own
+public interface ContentionManager{
+
+//true to kill other, false to wait for it and retry
+boolean abortOther(LockingTransaction tx, LockingTransaction.Info other);
+
+//how long tx waits for other to finish before retrying
+long waitNanos(LockingTransaction tx, LockingTransaction.Info other);
+
+//how long tx pauses before its next attempt, 0 for none. attempt is the number of attempts so far
+long retryDelayNanos(LockingTransaction tx, int attempt);
+
+
+//the classic policy: the older transaction wins, but only after it has run for a while
+static class Default implements ContentionManager{
+	public boolean abortOther(LockingTransaction tx, LockingTransaction.Info other){
+		return tx.getElapsedNanos() > LockingTransaction.BARGE_WAIT_NANOS && tx.isOlderThan(other);
+	}
+
+	public long waitNanos(LockingTransaction tx, LockingTransaction.Info other){
+		return LockingTransaction.LOCK_WAIT_MSECS * 1000000L;
+	}
+
+	public long retryDelayNanos(LockingTransaction tx, int attempt){
+		return 0;
+	}
+
+	static final ThreadLocal<Random> random = new ThreadLocal<Random>(){
+		protected Random initialValue(){
+			return new Random();
+		}
+	};
+
+	//a random duration up to min * 2^attempt, capped at max
+	static long backoff(int attempt, long min, long max){
+		long limit = min << Math.min(attempt, 30);
+		if(limit <= 0 || limit > max)
+			limit = max;
+		return (long) (random.get().nextDouble() * limit);
+	}
+}
+
+//the older transaction always wins at once, the younger one waits for it
+static class Greedy extends Default{
+	public boolean abortOther(LockingTransaction tx, LockingTransaction.Info other){
+		return tx.isOlderThan(other);
+	}
+}
+
+//the transaction that has done more work wins, where work is the number of refs opened, kept across retries.
+//the loser waits briefly, and wins once its work plus the conflicts it lost exceed the other's
+static class Karma extends Default{
+	static final long WAIT_NANOS = 1000000;
+
+	public boolean abortOther(LockingTransaction tx, LockingTransaction.Info other){
+		return tx.getKarma() + tx.getAttempt() > other.getKarma();
+	}
+
+	public long waitNanos(LockingTransaction tx, LockingTransaction.Info other){
+		return WAIT_NANOS;
+	}
+}
+
+//Karma with randomized exponential waits
+static class Polka extends Karma{
+	public long waitNanos(LockingTransaction tx, LockingTransaction.Info other){
+		return backoff(tx.getAttempt(), 20000, WAIT_NANOS * 16);
+	}
+}
+
+//never kills another transaction, retries after randomized exponential pauses
+static class Backoff extends Default{
+	public boolean abortOther(LockingTransaction tx, LockingTransaction.Info other){
+		return false;
+	}
+
+	public long waitNanos(LockingTransaction tx, LockingTransaction.Info other){
+		return backoff(tx.getAttempt(), 50000, LockingTransaction.LOCK_WAIT_MSECS * 1000000L);
+	}
+
+	public long retryDelayNanos(LockingTransaction tx, int attempt){
+		return backoff(attempt, 1000, 1000000);
+	}
+}
+
+static final ContentionManager DEFAULT = new Default();
+static final ContentionManager GREEDY = new Greedy();
+static final ContentionManager KARMA = new Karma();
+static final ContentionManager POLKA = new Polka();
+static final ContentionManager BACKOFF = new Backoff();
+}
@@ -13,11 +13,17 @@
 package clojure.lang;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"SynchronizeOnNonFinalField"})
 public class LockingTransaction{
@@ -35,22 +41,136 @@ static final int COMMITTED = 4;
 
 final static ThreadLocal<LockingTransaction> transaction = new ThreadLocal<LockingTransaction>();
 
+static final Keyword READ_ONLY = Keyword.intern(null, "read-only");
+static final Keyword VALIDATE_ENSURES = Keyword.intern(null, "validate-ensures");
+static final Keyword KEEP_MEMOS = Keyword.intern(null, "keep-memos");
+static final Keyword SNAPSHOT = Keyword.intern(null, "snapshot");
+static final Keyword CONTENTION_MANAGER = Keyword.intern(null, "contention-manager");
+
+static volatile ContentionManager contentionManager =
+		contentionManager(System.getProperty("clojure.stm.contention-manager", "default"));
+
+//a ContentionManager, or the name of a built in one as a keyword or string
+static public ContentionManager contentionManager(Object m){
+	if(m instanceof ContentionManager)
+		return (ContentionManager) m;
+	String name = m instanceof Named ? ((Named) m).getName() : String.valueOf(m);
+	if(name.equals("default"))
+		return ContentionManager.DEFAULT;
+	if(name.equals("greedy"))
+		return ContentionManager.GREEDY;
+	if(name.equals("karma"))
+		return ContentionManager.KARMA;
+	if(name.equals("polka"))
+		return ContentionManager.POLKA;
+	if(name.equals("backoff"))
+		return ContentionManager.BACKOFF;
+	throw new IllegalArgumentException("Unknown contention manager: " + m);
+}
+
+//for transactions that don't choose one in their flags
+static public void setContentionManager(Object m){
+	contentionManager = contentionManager(m);
+}
+
+//fn -> a fn of two arg seqs that returns one arg seq with the same effect, so that successive commutes of fn
+//on a ref collapse into one
+static final ConcurrentHashMap<IFn, IFn> combiners = new ConcurrentHashMap<IFn, IFn>();
+
+//a nested sync that conflicts retries by itself, instead of retrying the whole transaction
+static final boolean CLOSED_NESTING =
+		System.getProperty("clojure.stm.closed-nesting", "true").equals("true");
+//sites whose transactions need their reads, for nested syncs or retry. They track their reads from the start
+static final ConcurrentHashMap<Object, Boolean> trackedSites = new ConcurrentHashMap<Object, Boolean>();
+
+static public void setCombiner(IFn fn, IFn combine){
+	if(combine == null)
+		combiners.remove(fn);
+	else
+		combiners.put(fn, combine);
+}
+
+
+//control flow between the STM and actors, thrown through client code. There is one instance of each, without
+//a stack trace: filling one in walks the whole stack, which is deep in client code, for every retry
+static class Signal extends Error{
+	private static final long serialVersionUID = 1L;
+
+	public Throwable fillInStackTrace(){
+		return this;
+	}
+}
+
+static class RetryEx extends Signal{
+	private static final long serialVersionUID = 1L;
+}
+
+//thrown by retry, the transaction waits for a ref it read to change
+static class BlockEx extends Signal{
+	private static final long serialVersionUID = 1L;
+}
+
+static final RetryEx retryex = new RetryEx();
+static final BlockEx blockex = new BlockEx();
+
+//a transaction blocked in retry, woken by the first commit to one of the refs it read.
+//the same waiter is in the waiters of each of those refs, and only the first wake counts
+static class Waiter{
+	final AtomicBoolean woken = new AtomicBoolean();
+	final Thread thread;
+
+	Waiter(Thread thread){
+		this.thread = thread;
+	}
 
-static class RetryEx extends Error{
+	void wake(){
+		if(woken.compareAndSet(false, true))
+			resume();
+	}
+
+	boolean woken(){
+		return woken.get();
+	}
+
+	void resume(){
+		LockSupport.unpark(thread);
+	}
+
+	void await() throws InterruptedException{
+		while(!woken.get())
+			{
+			LockSupport.park(this);
+			if(Thread.interrupted())
+				{
+				woken.set(true);
+				throw new InterruptedException();
+				}
+			}
+	}
 }
 
 static class AbortException extends Exception{
+	private static final long serialVersionUID = 1L;
+
+	public Throwable fillInStackTrace(){
+		return this;
+	}
 }
 
+static final AbortException abortex = new AbortException();
+
 public static class Info{
 	final AtomicInteger status;
 	final long startPoint;
+	final long threadId; //breaks ties between transactions with the same startPoint
 	final CountDownLatch latch;
+	volatile int karma; //published by the transaction when it writes
 
 
 	public Info(int status, long startPoint){
 		this.status = new AtomicInteger(status);
 		this.startPoint = startPoint;
+		this.threadId = Thread.currentThread().getId();
 		this.latch = new CountDownLatch(1);
 	}
 
@@ -66,23 +186,72 @@ public static class Info{
 	public void waitUntilFinished() throws InterruptedException {
 		latch.await();
 	}
+
+	public long getStartPoint(){
+		return startPoint;
+	}
+
+	public int getKarma(){
+		return karma;
+	}
 }
 
+//stands in for the Info of an attempt that hasn't written yet
+//it's never stored in a ref, so no one can kill or wait on it
+static final Info READING = new Info(RUNNING, 0);
+
 static class CFn{
 	final IFn fn;
-	final ISeq args;
+	ISeq args;
+	CFn next;
 
 	public CFn(IFn fn, ISeq args){
 		this.fn = fn;
 		this.args = args;
 	}
 }
-//total order on transactions
-//transactions will consume a point for init, for each retry, and on commit if writing
+//total order on commits, TL2 style
+//only writing commits advance the clock, an attempt just reads it: it sees all commits up to and including lastPoint.
+//a commit takes its point while holding the write locks of its refs, and readers wait for a held write lock, so a
+//reader with readPoint >= a commit's point waits until that commit's values are in place.
 final private static AtomicLong lastPoint = new AtomicLong();
 
 void getReadPoint(){
-	readPoint = lastPoint.incrementAndGet();
+	readPoint = lastPoint.get();
+}
+
+static long currentPoint(){
+	return lastPoint.get();
+}
+
+//read points of the running snapshot transactions -> how many have it. Commits keep the newest val at or before
+//the oldest of them, and all newer ones, so those transactions never fault
+static final TreeMap<Long, Integer> pins = new TreeMap<Long, Integer>();
+static volatile long oldestPin = Long.MAX_VALUE;
+
+//returns the pinned point. A commit that hasn't seen the pin yet took its point before the caller's next read
+//point, so it keeps the vals that read point needs
+static long pin(){
+	synchronized(pins)
+		{
+		long point = lastPoint.get();
+		Integer n = pins.get(point);
+		pins.put(point, n == null ? 1 : n + 1);
+		oldestPin = pins.firstKey();
+		return point;
+		}
+}
+
+static void unpin(long point){
+	synchronized(pins)
+		{
+		int n = pins.get(point);
+		if(n == 1)
+			pins.remove(point);
+		else
+			pins.put(point, n - 1);
+		oldestPin = pins.isEmpty() ? Long.MAX_VALUE : pins.firstKey();
+		}
 }
 
 long getCommitPoint(){
@@ -90,7 +259,11 @@ long getCommitPoint(){
 }
 
 void stop(int status){
-	if(info != null)
+	if(info == READING)
+		{
+		info = null;
+		}
+	else if(info != null)
 		{
 		synchronized(info)
 			{
@@ -98,41 +271,70 @@ void stop(int status){
 			info.latch.countDown();
 			}
 		info = null;
-		vals.clear();
-		sets.clear();
-		commutes.clear();
 		//actions.clear();
 		}
 }
 
 
 Info info;
+boolean readOnly;
+boolean validateEnsures; //ensure checks refs at commit instead of read locking them
+boolean keepMemos; //memos survive retries, they're keyed by val so they're still right if it didn't change
+IdentityHashMap<Ref, Memo> memos; //values derived from refs, see memo
 long readPoint;
 long startPoint;
 long startTime;
-final RetryEx retryex = new RetryEx();
+int attempt;
+int karma; //refs opened, across attempts
+ContentionManager manager;
 final ArrayList<Agent.Action> actions = new ArrayList<Agent.Action>();
 final ArrayList<Actor> spawned = new ArrayList<Actor>();
+final ArrayList<Actor.Message> deferred = new ArrayList<Actor.Message>(); // messages delivered on commit
+final ArrayList<TimingWheel.Timeout> timers = new ArrayList<TimingWheel.Timeout>(); // started on commit
 Actor.Behavior nextBehavior = null; // possible become executed in tx
-final HashMap<Ref, Object> vals = new HashMap<Ref, Object>();
-final HashSet<Ref> sets = new HashSet<Ref>();
-final TreeMap<Ref, ArrayList<CFn>> commutes = new TreeMap<Ref, ArrayList<CFn>>();
-
-final HashSet<Ref> ensures = new HashSet<Ref>();   //all hold readLock
+Map<ActorCell, Object> cells = null; // values of actor cells before this tx wrote them
+final RefLog log = new RefLog(); //vals, sets, commutes and ensures of this attempt, cleared when it ends
+Object site; //where the transaction was started, for ConflictStats
+int conflict; //why this attempt is retrying, see ConflictStats, -1 if it isn't
+boolean trackReads; //log the versions read, for nested syncs and retry
+boolean wantReads; //track reads from the next attempt on
+int nesting; //nested scopes that may be rolled back
+boolean committed; //past the commit point, only the post-commit work is left
+final ArrayList<Ref> waitRefs = new ArrayList<Ref>(); //refs read by or-else alternatives that were undone
+
+//records a conflict on ref, if any, and the reason for the retry
+RetryEx retry(int reason, Ref ref){
+	if(ref != null)
+		ConflictStats.recordRef(ref, reason);
+	conflict = reason;
+	return retryex;
+}
 
 
 void tryWriteLock(Ref ref){
+	ReentrantReadWriteLock.WriteLock lock = ref.getLock().writeLock();
+	//free most of the time, and then there's no need for the timed wait
+	if(lock.tryLock())
+		return;
 	try
 		{
-		if(!ref.lock.writeLock().tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
-			throw retryex;
+		if(!lock.tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
+			throw retry(ConflictStats.LOCK_TIMEOUT, ref);
 		}
 	catch(InterruptedException e)
 		{
-		throw retryex;
+		throw retry(ConflictStats.LOCK_TIMEOUT, ref);
 		}
 }
 
+//called before the first write of an attempt
+Info getInfo(){
+	if(info == READING)
+		info = new Info(RUNNING, startPoint);
+	info.karma = karma;
+	return info;
+}
+
 //returns the most recent val
 Object lock(Ref ref){
 	//can't upgrade readLock, so release it
@@ -145,17 +347,17 @@ Object lock(Ref ref){
 		unlocked = false;
 
 		if(ref.tvals != null && ref.tvals.point > readPoint)
-			throw retryex;
+			throw retry(ConflictStats.STALE, ref);
 		Info refinfo = ref.tinfo;
 
 		//write lock conflict
 		if(refinfo != null && refinfo != info && refinfo.running())
 			{
-			if(!barge(refinfo))
+			if(!barge(ref, refinfo))
 				{
-				ref.lock.writeLock().unlock();
+				ref.getLock().writeLock().unlock();
 				unlocked = true;
-				return blockAndBail(refinfo);
+				return blockAndBail(ref, refinfo);
 				}
 			}
 		ref.tinfo = info;
@@ -164,51 +366,68 @@ Object lock(Ref ref){
 	finally
 		{
 		if(!unlocked)
-			ref.lock.writeLock().unlock();
+			ref.getLock().writeLock().unlock();
 		}
 }
 
-private Object blockAndBail(Info refinfo){
+private Object blockAndBail(Ref ref, Info refinfo){
 //stop prior to blocking
 	stop(RETRY);
+	ConflictStats.recordRef(ref, ConflictStats.WAIT);
 	try
 		{
-		refinfo.latch.await(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
+		refinfo.latch.await(manager.waitNanos(this, refinfo), TimeUnit.NANOSECONDS);
 		}
 	catch(InterruptedException e)
 		{
 		//ignore
 		}
-	throw retryex;
+	throw retry(ConflictStats.WAIT, null);
 }
 
 private void releaseIfEnsured(Ref ref){
-	if(ensures.contains(ref))
+	int i = log.find(ref);
+	if(i >= 0 && log.is(i, RefLog.ENSURE))
 		{
-		ensures.remove(ref);
-		ref.lock.readLock().unlock();
+		log.unset(i, RefLog.ENSURE);
+		ref.getLock().readLock().unlock();
 		}
 }
 
 void abort() throws AbortException{
 	stop(KILLED);
-	throw new AbortException();
+	throw abortex;
+}
+
+public long getElapsedNanos(){
+	return System.nanoTime() - startTime;
+}
+
+public int getAttempt(){
+	return attempt;
 }
 
-private boolean bargeTimeElapsed(){
-	return System.nanoTime() - startTime > BARGE_WAIT_NANOS;
+public int getKarma(){
+	return karma;
 }
 
-private boolean barge(Info refinfo){
+//startPoints are no longer unique, as attempts don't advance the clock
+public boolean isOlderThan(Info refinfo){
+	return startPoint < refinfo.startPoint
+	       || (startPoint == refinfo.startPoint && info.threadId < refinfo.threadId);
+}
+
+private boolean barge(Ref ref, Info refinfo){
 	boolean barged = false;
-	//if this transaction is older
+	//if the contention manager says so
 	//  try to abort the other
-	if(bargeTimeElapsed() && startPoint < refinfo.startPoint)
+	if(manager.abortOther(this, refinfo))
 		{
         barged = refinfo.status.compareAndSet(RUNNING, KILLED);
         if(barged)
             refinfo.latch.countDown();
 		}
+	ConflictStats.recordRef(ref, barged ? ConflictStats.BARGE_WON : ConflictStats.BARGE_LOST);
 	return barged;
 }
 
@@ -231,26 +450,150 @@ static LockingTransaction getRunning(){
 }
 
 static public Object runInTransaction(Callable fn) throws Exception{
+	return runInTransaction(fn, null);
+}
+
+//flags only apply to the outermost transaction, a nested one joins it
+static public Object runInTransaction(Callable<?> fn, IPersistentMap flags) throws Exception{
+	return runInTransaction(fn, flags, null);
+}
+
+//site identifies the sync form for ConflictStats
+static public Object runInTransaction(Callable<?> fn, IPersistentMap flags, Object site) throws Exception{
 	LockingTransaction t = transaction.get();
 	Object ret;
 	if(t == null) {
 		transaction.set(t = new LockingTransaction());
 		try {
-			ret = t.run(fn);
+			ret = t.run(fn, flags, site);
 		} finally {
 			transaction.remove();
 		}
 	} else {
 		if(t.info != null) {
-			ret = fn.call();
+			ret = t.runNested(fn);
 		} else {
-			ret = t.run(fn);
+			ret = t.run(fn, flags, site);
 		}
 	}
 
 	return ret;
 }
 
+//batches run BATCH_CHUNK fns per transaction. A chunk that needs more than BATCH_ATTEMPTS attempts, or one of
+//whose fns throws, runs each of its fns in a transaction of its own instead
+static final int BATCH_CHUNK = 64;
+static final int BATCH_ATTEMPTS = 3;
+
+static class SplitBatch extends Signal{
+	private static final long serialVersionUID = 1L;
+}
+
+static final SplitBatch splitBatch = new SplitBatch();
+
+//runs each of fns, fns of no args, atomically and returns a vector of their values. The fns are grouped into
+//transactions that each commit at a single point, and the groups run in parallel. Within a group, a fn sees
+//the effects of the fns before it, and a fn with a conflict is retried on its own like a nested sync.
+//If fns throw, the others are still committed, and the first exception is thrown once they are.
+static public IPersistentVector runBatch(Object fns, IPersistentMap flags) throws Exception{
+	Object[] fs = RT.toArray(fns);
+	Object[] results = new Object[fs.length];
+	if(getRunning() != null)
+		{
+		//already in a transaction, which makes the batch atomic as a whole
+		for(int i = 0; i < fs.length; i++)
+			results[i] = runInTransaction((IFn) fs[i], flags);
+		return LazilyPersistentVector.createOwning(results);
+		}
+	ArrayList<Future<Object>> chunks = new ArrayList<Future<Object>>();
+	Throwable failed = null;
+	for(int from = 0; from < fs.length; from += BATCH_CHUNK)
+		{
+		Callable<Object> chunk = batchChunk(fs, from, Math.min(from + BATCH_CHUNK, fs.length), results, flags);
+		//the caller runs the last chunk itself
+		if(from + BATCH_CHUNK >= fs.length)
+			{
+			//still wait for the other chunks if it throws
+			try
+				{
+				failed = (Throwable) chunk.call();
+				}
+			catch(Throwable e)
+				{
+				failed = e;
+				}
+			}
+		else
+			chunks.add(Agent.soloExecutor.submit(chunk));
+		}
+	for(Future<Object> f : chunks)
+		{
+		Throwable e;
+		try
+			{
+			e = (Throwable) f.get();
+			}
+		catch(ExecutionException ex)
+			{
+			e = ex.getCause();
+			}
+		if(failed == null)
+			failed = e;
+		}
+	if(failed != null)
+		throw Util.sneakyThrow(failed);
+	return LazilyPersistentVector.createOwning(results);
+}
+
+//runs fs[from..to) into results, returns the first exception thrown by one of them, or null
+static Callable<Object> batchChunk(final Object[] fs, final int from, final int to, final Object[] results,
+                                   final IPersistentMap flags){
+	return new Callable<Object>(){
+		public Object call() throws Exception{
+			final int[] attempts = {0};
+			final LockingTransaction[] tx = {null};
+			try
+				{
+				runInTransaction(new Callable<Object>(){
+					public Object call() throws Exception{
+						if(++attempts[0] > BATCH_ATTEMPTS)
+							throw splitBatch;
+						LockingTransaction t = tx[0] = getEx();
+						for(int i = from; i < to; i++)
+							results[i] = t.runNested((IFn) fs[i]);
+						return null;
+					}
+				}, flags);
+				return null;
+				}
+			catch(Throwable e)
+				{
+				//thrown after the commit point, by watches or dispatches: the chunk's writes were made, so it's not
+				//safe to run its fns again
+				if(tx[0] != null && tx[0].committed)
+					throw Util.sneakyThrow(e);
+				//contended, one of the fns threw, or the commit failed, e.g. on a validator: the chunk made no
+				//changes, run its fns one by one
+				Throwable failed = null;
+				for(int i = from; i < to; i++)
+					{
+					try
+						{
+						results[i] = runInTransaction((IFn) fs[i], flags);
+						}
+					catch(Throwable ex)
+						{
+						results[i] = null;
+						if(failed == null)
+							failed = ex;
+						}
+					}
+				return failed;
+				}
+		}
+	};
+}
+
 static class Notify{
 	final public Ref ref;
 	final public Object oldval;
@@ -263,122 +606,241 @@ static class Notify{
 	}
 }
 
+Object run(Callable<?> fn, IPersistentMap flags, Object site) throws Exception{
+	this.site = site;
+	boolean snapshot = flags != null && RT.booleanCast(flags.valAt(SNAPSHOT));
+	readOnly = snapshot || (flags != null && RT.booleanCast(flags.valAt(READ_ONLY)));
+	validateEnsures = flags != null && RT.booleanCast(flags.valAt(VALIDATE_ENSURES));
+	keepMemos = flags != null && RT.booleanCast(flags.valAt(KEEP_MEMOS));
+	Object m = flags == null ? null : flags.valAt(CONTENTION_MANAGER);
+	manager = m == null ? contentionManager : contentionManager(m);
+	long pinned = snapshot ? pin() : 0;
+	try
+		{
+		return run(fn);
+		}
+	finally
+		{
+		if(snapshot)
+			unpin(pinned);
+		readOnly = false;
+		validateEnsures = false;
+		keepMemos = false;
+		memos = null;
+		manager = null;
+		this.site = null;
+		}
+}
+
 Object run(Callable fn) throws Exception{
 	boolean done = false;
 	Object ret = null;
 	ArrayList<Ref> locked = new ArrayList<Ref>();
 	ArrayList<Notify> notify = new ArrayList<Notify>();
-
+	//refs whose async watches or retry waiters are run after the commit, as running them may fail
+	ArrayList<Ref> drains = new ArrayList<Ref>();
+	ArrayList<Ref> woken = new ArrayList<Ref>();
+	boolean blocked = false;
+	long blockPoint = 0;
+
+	karma = 0;
+	wantReads = false;
+	committed = false;
 	for(int i = 0; !done && i < RETRY_LIMIT; i++)
 		{
 		try
 			{
+			attempt = i;
+			conflict = -1;
+			trackReads = wantReads || (site != null && trackedSites.containsKey(site));
+			if(i > 0)
+				{
+				long delay = manager.retryDelayNanos(this, i);
+				if(delay > 0)
+					LockSupport.parkNanos(delay);
+				}
 			getReadPoint();
 			if(i == 0)
 				{
 				startPoint = readPoint;
 				startTime = System.nanoTime();
 				}
-			info = new Info(RUNNING, startPoint);
+			info = READING;
 			ret = fn.call();
 			Actor.abortIfDependencyAborted(); // if we have a dependency, only commit after dependency committed
+			//nothing was written: the reads were consistent at readPoint, so there's nothing left to do
+			if(info == READING)
+				{
+				done = true;
+				}
+			else if(!precommute())
+				{
+				//killed while running the commutes
+				conflict = ConflictStats.BARGED;
+				}
 			//make sure no one has killed us before this point, and can't from now on
-			if(info.status.compareAndSet(RUNNING, COMMITTING))
+			else if(info.status.compareAndSet(RUNNING, COMMITTING))
 				{
-				for(Map.Entry<Ref, ArrayList<CFn>> e : commutes.entrySet())
+				//the written refs are locked in lock order (by id, or by stripe with striped locks), so two commits
+				//never wait on each other in a cycle while locking them
+				int[] order = log.sorted();
+				for(int k = 0, n = log.size(); k < n; k++)
 					{
-					Ref ref = e.getKey();
-					if(sets.contains(ref)) continue;
-					
-					boolean wasEnsured = ensures.contains(ref);
+					int e = order[k];
+					if(log.is(e, RefLog.SET))
+						{
+						tryWriteLock(log.ref(e));
+						locked.add(log.ref(e));
+						continue;
+						}
+					if(!log.is(e, RefLog.COMMUTE)) continue;
+					Ref ref = log.ref(e);
+
+					boolean wasEnsured = log.is(e, RefLog.ENSURE);
 					//can't upgrade readLock, so release it
 					releaseIfEnsured(ref);
 					tryWriteLock(ref);
 					locked.add(ref);
 					if(wasEnsured && ref.tvals != null && ref.tvals.point > readPoint)
-						throw retryex;
+						throw retry(ConflictStats.STALE, ref);
 
 					Info refinfo = ref.tinfo;
 					if(refinfo != null && refinfo != info && refinfo.running())
 						{
-						if(!barge(refinfo))
-							throw retryex;
+						if(!barge(ref, refinfo))
+							throw retry(ConflictStats.BARGE_LOST, null);
 						}
-					Object val = ref.tvals == null ? null : ref.tvals.val;
-					vals.put(ref, val);
-					for(CFn f : e.getValue())
-						{
-						vals.put(ref, f.fn.applyTo(RT.cons(vals.get(ref), f.args)));
-						}
-					}
-				for(Ref ref : sets)
-					{
-					tryWriteLock(ref);
-					locked.add(ref);
+					//only redo the commutes if the ref was committed since precommute
+					if(ref.tvals != log.base(e))
+						log.setVal(e, applyCommutes(e, ref.tvals));
 					}
 
+				derive(locked);
+
 				//validate and enqueue notifications
-				for(Map.Entry<Ref, Object> e : vals.entrySet())
+				for(int e = 0, n = log.size(); e < n; e++)
 					{
-					Ref ref = e.getKey();
-					ref.validate(ref.getValidator(), e.getValue());
+					if(log.is(e, RefLog.VAL))
+						{
+						Ref ref = log.ref(e);
+						ref.validate(ref.getValidator(), log.val(e));
+						}
 					}
 
 				//at this point, all values calced, all refs to be written locked
 				//no more client code to be called
-				long commitPoint = getCommitPoint();
-				for(Map.Entry<Ref, Object> e : vals.entrySet())
+				//a read-only commit doesn't need a point
+				long commitPoint = log.hasVals() ? getCommitPoint() : readPoint;
+				//validated ensures, checked after taking the point: a commit that hasn't locked one of them yet
+				//will take a later point. A commit that has may have taken an earlier one
+				if(log.hasVals())
+					{
+					for(int e = 0, n = log.size(); e < n; e++)
+						{
+						if(!log.is(e, RefLog.VALIDATE) || log.is(e, RefLog.SET | RefLog.COMMUTE)) continue;
+						Ref ref = log.ref(e);
+						ReentrantReadWriteLock l = ref.getLock();
+						if((l.isWriteLocked() && !l.isWriteLockedByCurrentThread()) || ref.tvals != log.read(e))
+							throw retry(ConflictStats.STALE, ref);
+						}
+					}
+				for(int e = 0, n = log.size(); e < n; e++)
 					{
-					Ref ref = e.getKey();
+					if(!log.is(e, RefLog.VAL)) continue;
+					Ref ref = log.ref(e);
 					Object oldval = ref.tvals == null ? null : ref.tvals.val;
-					Object newval = e.getValue();
-					int hcount = ref.histCount();
-
+					Object newval = log.val(e);
 					if(ref.tvals == null)
 						{
 						ref.tvals = new Ref.TVal(newval, commitPoint);
 						}
-					else if((ref.faults.get() > 0 && hcount < ref.maxHistory)
-							|| hcount < ref.minHistory)
-						{
-						ref.tvals = new Ref.TVal(newval, commitPoint, ref.tvals);
-						ref.faults.set(0);
-						}
 					else
 						{
-						ref.tvals = ref.tvals.next;
-						ref.tvals.val = newval;
-						ref.tvals.point = commitPoint;
+						ref.install(newval, commitPoint, ref.historyLimit(ref.histCount()));
 						}
 					if(ref.getWatches().count() > 0)
-						notify.add(new Notify(ref, oldval, newval));
+						{
+						//queued while the ref is still locked, so its watches see commits in order. The commit
+						//can't fail from here on
+						if(!ref.asyncWatches)
+							notify.add(new Notify(ref, oldval, newval));
+						else if(ref.notifyLater(new Notify(ref, oldval, newval)))
+							drains.add(ref);
+						}
+					if(ref.waiters != null)
+						woken.add(ref);
 					}
 
 				done = true;
 				info.status.set(COMMITTED);
 				}
+			else
+				conflict = ConflictStats.BARGED;
 			}
 		catch(RetryEx retry)
 			{
 			//eat this so we retry rather than fall out
 			}
+		catch(BlockEx block)
+			{
+			blocked = true;
+			if(!trackReads)
+				{
+				//run again to find out what to wait for. The refs of alternatives undone so far are only some of
+				//them, the reads weren't logged
+				waitRefs.clear();
+				trackReads();
+				}
+			else
+				{
+				for(int e = 0, n = log.size(); e < n; e++)
+					waitRefs.add(log.ref(e));
+				if(waitRefs.isEmpty())
+					throw new IllegalStateException("retry in a transaction that has read no Refs would wait forever");
+				blockPoint = readPoint;
+				}
+			}
 		finally
 			{
 			for(int k = locked.size() - 1; k >= 0; --k)
 				{
-				locked.get(k).lock.writeLock().unlock();
+				locked.get(k).getLock().writeLock().unlock();
 				}
 			locked.clear();
-			for(Ref r : ensures)
+			for(int e = 0, n = log.size(); e < n; e++)
 				{
-				r.lock.readLock().unlock();
+				if(log.is(e, RefLog.ENSURE))
+					log.ref(e).getLock().readLock().unlock();
 				}
-			ensures.clear();
+			log.clear();
+			if(memos != null && !keepMemos)
+				memos.clear();
 			stop(done ? COMMITTED : RETRY);
+			if(!done && conflict >= 0)
+				ConflictStats.recordRetry(site, conflict);
 			try
 				{
 				if(done) // This runs out of the transaction
 					{
+					committed = true;
+					//a turn that committed can't be run again
+					Actor.irrevocable();
+					for(Ref ref : woken)
+						{
+						ref.wakeWaiters();
+						}
+					for(Ref ref : drains)
+						{
+						ref.drainLater();
+						}
+					if(cells != null)
+						{
+						//the writes are kept, but can still be undone by the actor's tentative turn
+						Actor actor = Actor.getRunning();
+						if(actor != null && actor.tentative())
+							for(Map.Entry<ActorCell, Object> e : cells.entrySet())
+								actor.logCell(e.getKey(), e.getValue());
+						}
 					for(Notify n : notify)
 						{
 						n.ref.notifyWatches(n.oldval, n.newval);
@@ -387,24 +849,65 @@ Object run(Callable fn) throws Exception{
 						{
 						Agent.dispatchAction(action);
 						}
+					for(Actor.Message message : deferred)
+						{
+						Actor.enqueueDeferred(message);
+						}
 					for(Actor actor : spawned)
 						{
 						Actor.start(actor); // TODO: doesn't actually start them, just adds them to the turn's list
 						}
+					for(TimingWheel.Timeout timeout : timers)
+						{
+						Actor.startTimer(timeout);
+						}
 					if(nextBehavior != null)
 						{
 						Actor.getEx().become(nextBehavior);
 						}
 					}
+				else if(cells != null)
+					{
+					ActorCell.rollback(cells);
+					}
 				}
 			finally
 				{
 				notify.clear();
+				drains.clear();
+				woken.clear();
 				actions.clear();
+				deferred.clear();
 				spawned.clear();
+				timers.clear();
 				nextBehavior = null;
+				cells = null;
 				}
 			}
+		if(blocked)
+			{
+			blocked = false;
+			if(!waitRefs.isEmpty())
+				{
+				try
+					{
+					//an actor's turn gives up its carrier, and runs again once woken
+					Waiter w = Actor.canSuspend() ? Actor.suspender() : new Waiter(Thread.currentThread());
+					awaitChange(w, waitRefs, blockPoint);
+					if(w.thread == null)
+						throw Actor.suspended();
+					w.await();
+					}
+				finally
+					{
+					waitRefs.clear();
+					}
+				//waiting isn't a conflict, it starts over as a new transaction
+				i = -1;
+				karma = 0;
+				}
+			}
+		waitRefs.clear();
 		}
 	if(!done)
 		throw Util.runtimeException("Transaction failed after reaching retry limit");
@@ -419,62 +922,157 @@ public void spawnActor(Actor actor) {
 	spawned.add(actor);
 }
 
+void logCell(ActorCell cell, Object oldval){
+	cells = ActorCell.log(cells, cell, oldval);
+}
+
+void addTimer(TimingWheel.Timeout timeout){
+	timers.add(timeout);
+}
+
+void deferMessage(Actor.Message message){
+	deferred.add(message);
+}
+
+boolean hasDeferredMessageFor(Actor receiver){
+	for(Actor.Message message : deferred)
+		{
+		if(message.receiver == receiver)
+			return true;
+		}
+	return false;
+}
+
 public void become(Actor.Behavior behavior) {
 	nextBehavior = behavior;
 }
 
 Object doGet(Ref ref){
 	if(!info.running())
-		throw retryex;
-	if(vals.containsKey(ref))
-		return vals.get(ref);
-	try
+		throw retry(ConflictStats.BARGED, null);
+	if(ref.derivation != null && derivedPending(ref))
+		return derivedVal(ref);
+	int i = log.find(ref);
+	if(i >= 0 && log.is(i, RefLog.VAL))
+		return log.val(i);
+	karma++;
+	Ref.TVal ver = readVersion(ref);
+	if(trackReads && (i < 0 || !log.is(i, RefLog.READ | RefLog.VAL | RefLog.ENSURE)))
+		log.setRead(i < 0 ? log.add(ref) : i, ver);
+	return ver.val;
+}
+
+//the version of ref as of readPoint
+private Ref.TVal readVersion(Ref ref){
+	Ref.TVal ver;
+	//a commit holds the write lock from taking its point until its vals are in place, so if the ref isn't
+	//write locked, any commit at or before readPoint is visible and the history can be read without a lock
+	if(!ref.isWriteLocked())
+		ver = findVal(ref, ref.tvals);
+	else
 		{
-		ref.lock.readLock().lock();
-		if(ref.tvals == null)
-			throw new IllegalStateException(ref.toString() + " is unbound.");
-		Ref.TVal ver = ref.tvals;
-		do
+		try
 			{
-			if(ver.point <= readPoint)
-				return ver.val;
-			} while((ver = ver.prior) != ref.tvals);
-		}
-	finally
-		{
-		ref.lock.readLock().unlock();
+			ref.getLock().readLock().lock();
+			ver = findVal(ref, ref.tvals);
+			}
+		finally
+			{
+			ref.getLock().readLock().unlock();
+			}
 		}
+	if(ver != null)
+		return ver;
 	//no version of val precedes the read point
-	ref.faults.incrementAndGet();
-	throw retryex;
+	ref.fault();
+	throw retry(ConflictStats.FAULT, ref);
+}
 
+private void checkWritable(){
+	if(readOnly)
+		throw new IllegalStateException("Can't write to a Ref in a read-only transaction");
+}
+
+private static void checkNotDerived(Ref ref){
+	if(ref.derivation != null)
+		throw new IllegalStateException("Can't write to a derived Ref");
+}
+
+//the newest val at or before readPoint, or null
+private Ref.TVal findVal(Ref ref, Ref.TVal ver){
+	if(ver == null)
+		throw new IllegalStateException(ref.toString() + " is unbound.");
+	if(ver.point <= readPoint)
+		{
+		//no one written for so long should need the older vals, any reader that does will retry with a newer point.
+		//min-history is still kept
+		if(readPoint - ver.point > Ref.IDLE_POINTS && ver.prior != null && ver.point <= oldestPin)
+			{
+			Ref.TVal last = ver;
+			for(int i = ref.minHistory; i > 0 && last != null; i--)
+				last = last.prior;
+			if(last != null)
+				last.prior = null;
+			}
+		return ver;
+		}
+	int depth = 1;
+	for(ver = ver.prior; ver != null; ver = ver.prior, depth++)
+		{
+		if(ver.point <= readPoint)
+			{
+			ref.readAt(depth);
+			return ver;
+			}
+		}
+	return null;
 }
 
 Object doSet(Ref ref, Object val){
 	if(!info.running())
-		throw retryex;
-	if(commutes.containsKey(ref))
+		throw retry(ConflictStats.BARGED, null);
+	checkWritable();
+	checkNotDerived(ref);
+	karma++;
+	getInfo();
+	int i = log.add(ref);
+	if(log.is(i, RefLog.COMMUTE))
 		throw new IllegalStateException("Can't set after commute");
-	if(!sets.contains(ref))
+	if(!log.is(i, RefLog.SET))
 		{
-		sets.add(ref);
+		log.set(i, RefLog.SET);
 		lock(ref);
 		}
-	vals.put(ref, val);
+	log.setVal(i, val);
 	return val;
 }
 
 void doEnsure(Ref ref){
 	if(!info.running())
-		throw retryex;
-	if(ensures.contains(ref))
+		throw retry(ConflictStats.BARGED, null);
+	//a read-only transaction commits at its read point, nothing written later can affect it
+	if(readOnly || log.has(ref, RefLog.ENSURE))
+		return;
+	if(validateEnsures)
+		{
+		validateOnCommit(ref);
 		return;
-	ref.lock.readLock().lock();
+		}
+	karma++;
+	//a read lock on a stripe would keep us from write locking the other refs in it, so claim the ref like a write
+	//instead, without writing it on commit
+	if(Ref.STRIPES != null)
+		{
+		getInfo();
+		lock(ref);
+		return;
+		}
+	ref.getLock().readLock().lock();
 
 	//someone completed a write after our snapshot
 	if(ref.tvals != null && ref.tvals.point > readPoint) {
-        ref.lock.readLock().unlock();
-        throw retryex;
+        ref.getLock().readLock().unlock();
+        throw retry(ConflictStats.STALE, ref);
     }
 
 	Info refinfo = ref.tinfo;
@@ -482,40 +1080,379 @@ void doEnsure(Ref ref){
 	//writer exists
 	if(refinfo != null && refinfo.running())
 		{
-		ref.lock.readLock().unlock();
+		ref.getLock().readLock().unlock();
 
 		if(refinfo != info) //not us, ensure is doomed
 			{
-			blockAndBail(refinfo); 
+			blockAndBail(ref, refinfo);
 			}
 		}
 	else
-		ensures.add(ref);
+		log.set(log.add(ref), RefLog.ENSURE);
+}
+
+//ensures ref without its read lock: the version read now must still be the newest when we commit
+private void validateOnCommit(Ref ref){
+	int i = log.find(ref);
+	if(i >= 0 && log.is(i, RefLog.VALIDATE | RefLog.SET))
+		return;
+	karma++;
+	Ref.TVal ver = readVersion(ref);
+	//someone completed a write after our snapshot
+	if(ref.tvals != ver)
+		throw retry(ConflictStats.STALE, ref);
+	if(i < 0)
+		i = log.add(ref);
+	if(!log.is(i, RefLog.READ))
+		log.setRead(i, ver);
+	log.set(i, RefLog.VALIDATE);
+}
+
+//true if this transaction wrote one of the refs d is derived from, directly or through other derived refs
+private boolean derivedPending(Ref d){
+	for(Ref s : d.derivation.sources)
+		{
+		int i = log.find(s);
+		if((i >= 0 && log.is(i, RefLog.VAL)) || (s.derivation != null && derivedPending(s)))
+			return true;
+		}
+	return false;
+}
+
+//the val of d given the in-transaction vals of its sources
+private Object derivedVal(Ref d){
+	Ref[] sources = d.derivation.sources;
+	Object[] before = new Object[sources.length];
+	Object[] after = new Object[sources.length];
+	for(int k = 0; k < sources.length; k++)
+		{
+		before[k] = readVersion(sources[k]).val;
+		after[k] = doGet(sources[k]);
+		}
+	return d.derivation.compute(readVersion(d).val, before, after);
+}
+
+//locks and computes the refs derived from the ones written. Called with the written refs locked, so their
+//dependents can't change, and before the commit point is taken. Derived refs are only known once the written refs
+//are locked, so they are locked after them, whatever their ids: this is not one total order, a commit may wait on
+//a derived ref while holding a written ref that another commit waits on. tryWriteLock's timeout breaks such a
+//cycle by retrying
+private void derive(ArrayList<Ref> locked){
+	PriorityQueue<Ref> queue = null;
+	for(int e = 0, n = log.size(); e < n; e++)
+		{
+		if(!log.is(e, RefLog.VAL)) continue;
+		Ref[] ds = log.ref(e).dependents;
+		if(ds.length == 0) continue;
+		if(queue == null)
+			queue = new PriorityQueue<Ref>();
+		Collections.addAll(queue, ds);
+		}
+	if(queue == null)
+		return;
+	for(Ref d = queue.poll(); d != null; d = queue.poll())
+		{
+		int i = log.add(d);
+		if(log.is(i, RefLog.DERIVED)) continue;
+		boolean wasEnsured = log.is(i, RefLog.ENSURE);
+		//can't upgrade the read lock of an ensure
+		releaseIfEnsured(d);
+		tryWriteLock(d);
+		locked.add(d);
+		if(wasEnsured && d.tvals.point > readPoint)
+			throw retry(ConflictStats.STALE, d);
+		Ref[] sources = d.derivation.sources;
+		Object[] before = new Object[sources.length];
+		Object[] after = new Object[sources.length];
+		for(int k = 0; k < sources.length; k++)
+			{
+			//the sources are locked, or have no commit in progress that would change d
+			int j = log.find(sources[k]);
+			before[k] = sources[k].tvals.val;
+			after[k] = j >= 0 && log.is(j, RefLog.VAL) ? log.val(j) : before[k];
+			}
+		log.set(i, RefLog.DERIVED);
+		log.setVal(i, d.derivation.compute(d.tvals.val, before, after));
+		Collections.addAll(queue, d.dependents);
+		}
+}
+
+//a value derived from a val of a ref by fn
+static class Memo{
+	final IFn fn;
+	Object input;
+	Object result;
+	final Memo next;
+
+	Memo(IFn fn, Object input, Object result, Memo next){
+		this.fn = fn;
+		this.input = input;
+		this.result = result;
+		this.next = next;
+	}
+}
+
+//(fn (deref ref)), called once for each in-transaction val of ref. fns are compared by identity
+static public Object memo(Ref ref, IFn fn){
+	return getEx().doMemo(ref, fn);
+}
+
+Object doMemo(Ref ref, IFn fn){
+	Object val = doGet(ref);
+	if(memos == null)
+		memos = new IdentityHashMap<Ref, Memo>();
+	Memo first = memos.get(ref);
+	for(Memo m = first; m != null; m = m.next)
+		{
+		if(m.fn == fn)
+			{
+			//a write in the transaction, or a commit seen by a later attempt, gives a different val
+			if(m.input != val)
+				{
+				m.result = fn.invoke(val);
+				m.input = val;
+				}
+			return m.result;
+			}
+		}
+	Object result = fn.invoke(val);
+	memos.put(ref, new Memo(fn, val, result, memos.get(ref)));
+	return result;
+}
+
+//applies the commutes of entry e to the val of base
+private Object applyCommutes(int e, Ref.TVal base){
+	Object val = base == null ? null : base.val;
+	for(CFn f = log.fns(e); f != null; f = f.next)
+		{
+		val = f.fn.applyTo(RT.cons(val, f.args));
+		}
+	return val;
+}
+
+//runs the commutes on the newest vals before any lock is taken, so commit only redoes those whose refs
+//were committed in the meantime. Returns false if the transaction was killed.
+private boolean precommute(){
+	for(int e = 0, n = log.size(); e < n; e++)
+		{
+		if(!log.is(e, RefLog.COMMUTE) || log.is(e, RefLog.SET)) continue;
+		Ref.TVal base = log.ref(e).tvals;
+		log.setVal(e, applyCommutes(e, base));
+		log.setBase(e, base);
+		}
+	return info.running();
+}
+
+//runs the body of a sync nested in this transaction. With reads tracked, a conflict in the body rolls back just
+//its changes, and it runs again once everything read so far is known to still be current
+Object runNested(Callable<?> fn) throws Exception{
+	if(!CLOSED_NESTING)
+		return fn.call();
+	if(!trackReads)
+		{
+		trackReads();
+		return fn.call();
+		}
+	for(int i = 0; i < RETRY_LIMIT; i++)
+		{
+		Savepoint save = new Savepoint();
+		try
+			{
+			return fn.call();
+			}
+		catch(RetryEx ex)
+			{
+			//killed, waited for another transaction, or changed something that can't be undone: retry it all
+			if(info == null || !info.running() || !save.canRollback()
+			   || !(conflict == ConflictStats.STALE || conflict == ConflictStats.FAULT
+			        || conflict == ConflictStats.LOCK_TIMEOUT))
+				throw ex;
+			save.rollback();
+			ConflictStats.recordRetry(site, conflict);
+			if(!extendSnapshot())
+				throw retry(ConflictStats.STALE, null);
+			conflict = -1;
+			}
+		finally
+			{
+			save.leave();
+			}
+		}
+	throw Util.runtimeException("Transaction failed after reaching retry limit");
+}
+
+//tracks the reads of later attempts of this transaction, and of later transactions from its site
+private void trackReads(){
+	if(!wantReads)
+		{
+		wantReads = true;
+		if(site != null)
+			trackedSites.put(site, Boolean.TRUE);
+		}
+}
+
+//gives up the claim on a ref the transaction no longer writes, so other writers don't barge or wait on it. Only
+//if the lock is free: a claim left behind goes away when the transaction ends
+private void unclaim(Ref ref){
+	ReentrantReadWriteLock.WriteLock lock = ref.getLock().writeLock();
+	if(!lock.tryLock())
+		return;
+	try
+		{
+		if(ref.tinfo == info)
+			ref.tinfo = null;
+		}
+	finally
+		{
+		lock.unlock();
+		}
+}
+
+//the state of the transaction at the start of a nested scope, to roll back to
+final class Savepoint{
+	final RefLog.Mark mark = log.enter();
+	final int nactions = actions.size();
+	final int nspawned = spawned.size();
+	final int ndeferred = deferred.size();
+	final int ntimers = timers.size();
+	final Actor.Behavior behavior = nextBehavior;
+
+	Savepoint(){
+		nesting++;
+	}
+
+	//actor cell writes aren't in the log
+	boolean canRollback(){
+		return cells == null && log.canRollback(mark);
+	}
+
+	void rollback(){
+		ArrayList<Ref> set = log.setSince(mark);
+		log.rollback(mark);
+		for(Ref ref : set)
+			{
+			int i = log.find(ref);
+			if(i < 0 || !log.is(i, RefLog.SET))
+				unclaim(ref);
+			}
+		truncate(actions, nactions);
+		truncate(spawned, nspawned);
+		truncate(deferred, ndeferred);
+		truncate(timers, ntimers);
+		nextBehavior = behavior;
+	}
+
+	void leave(){
+		log.leave(mark);
+		nesting--;
+	}
+}
+
+//abandons the transaction until one of the refs it read is changed by another one, then runs it again
+static public Object doBlock(){
+	getEx();
+	throw blockex;
+}
+
+//runs the alternatives, fns of no args, in order until one doesn't call retry, undoing the effects of those that
+//did. If they all do, so does the transaction
+static public Object orElse(ISeq alternatives) throws Exception{
+	return getEx().runAlternatives(alternatives);
+}
+
+Object runAlternatives(ISeq alternatives) throws Exception{
+	for(ISeq s = alternatives; s != null; s = s.next())
+		{
+		Savepoint save = new Savepoint();
+		try
+			{
+			return ((Callable) s.first()).call();
+			}
+		catch(BlockEx ex)
+			{
+			if(s.next() == null || !save.canRollback())
+				throw ex;
+			//the whole transaction may block later, and then it waits for these too
+			for(int e = save.mark.count, n = log.size(); e < n; e++)
+				waitRefs.add(log.ref(e));
+			save.rollback();
+			}
+		finally
+			{
+			save.leave();
+			}
+		}
+	throw blockex;
+}
+
+//registers w with refs, and wakes it at once if one of them was committed after point
+static void awaitChange(Waiter w, ArrayList<Ref> refs, long point){
+	for(Ref ref : refs)
+		ref.addWaiter(w);
+	for(Ref ref : refs)
+		{
+		if(ref.tvals != null && ref.tvals.point > point)
+			{
+			w.wake();
+			break;
+			}
+		}
+}
+
+static void truncate(ArrayList<?> list, int size){
+	while(list.size() > size)
+		list.remove(list.size() - 1);
+}
+
+//moves readPoint to now, if no ref read so far has been committed since it was read
+private boolean extendSnapshot(){
+	long point = lastPoint.get();
+	for(int e = 0, n = log.size(); e < n; e++)
+		{
+		if(!log.is(e, RefLog.READ))
+			continue;
+		Ref ref = log.ref(e);
+		//a commit holding the write lock may already have taken a point before ours
+		if(ref.isWriteLocked() || ref.tvals != log.read(e))
+			return false;
+		}
+	readPoint = point;
+	return true;
 }
 
 Object doCommute(Ref ref, IFn fn, ISeq args) {
 	if(!info.running())
-		throw retryex;
-	if(!vals.containsKey(ref))
+		throw retry(ConflictStats.BARGED, null);
+	checkWritable();
+	checkNotDerived(ref);
+	karma++;
+	getInfo();
+	int i = log.add(ref);
+	if(!log.is(i, RefLog.VAL))
 		{
 		Object val = null;
 		try
 			{
-			ref.lock.readLock().lock();
+			ref.getLock().readLock().lock();
 			val = ref.tvals == null ? null : ref.tvals.val;
 			}
 		finally
 			{
-			ref.lock.readLock().unlock();
+			ref.getLock().readLock().unlock();
 			}
-		vals.put(ref, val);
+		log.setVal(i, val);
 		}
-	ArrayList<CFn> fns = commutes.get(ref);
-	if(fns == null)
-		commutes.put(ref, fns = new ArrayList<CFn>());
-	fns.add(new CFn(fn, args));
-	Object ret = fn.applyTo(RT.cons(vals.get(ref), args));
-	vals.put(ref, ret);
+	CFn last = log.lastFn(i);
+	IFn combine;
+	if(last != null && last.fn == fn && (combine = combiners.get(fn)) != null)
+		{
+		log.touchFn(i);
+		last.args = RT.seq(combine.invoke(last.args, args));
+		}
+	else
+		log.addFn(i, new CFn(fn, args));
+	Object ret = fn.applyTo(RT.cons(log.val(i), args));
+	log.setVal(i, ret);
 	return ret;
 }
 
@@ -12,8 +12,10 @@
 
 package clojure.lang;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class Ref extends ARef implements IFn, Comparable<Ref>, IRef{
@@ -35,6 +37,15 @@ public Ref setMinHistory(int minHistory){
 	return this;
 }
 
+public boolean getAsyncWatches(){
+	return asyncWatches;
+}
+
+public Ref setAsyncWatches(boolean asyncWatches){
+	this.asyncWatches = asyncWatches;
+	return this;
+}
+
 public int getMaxHistory(){
 	return maxHistory;
 }
@@ -44,42 +55,97 @@ public Ref setMaxHistory(int maxHistory){
 	return this;
 }
 
+//history is a list from the newest val to the oldest one kept. A node never changes once published, except
+//that committers cut the list short, so readers can walk it without a lock.
 public static class TVal{
-	Object val;
-	long point;
-	TVal prior;
-	TVal next;
+	final Object val;
+	final long point;
+	volatile TVal prior;
 
 	TVal(Object val, long point, TVal prior){
 		this.val = val;
 		this.point = point;
 		this.prior = prior;
-		this.next = prior.next;
-		this.prior.next = this;
-		this.next.prior = this;
 	}
 
 	TVal(Object val, long point){
-		this.val = val;
-		this.point = point;
-		this.next = this;
-		this.prior = this;
+		this(val, point, null);
 	}
 
 }
 
-TVal tvals;
-final AtomicInteger faults;
-final ReentrantReadWriteLock lock;
+volatile TVal tvals;
+//most refs are read far more than written, so the lock is only allocated by the first writer, see getLock()
+volatile int faults;
+volatile ReentrantReadWriteLock lock;
+volatile ConflictStats stats; //allocated with the first conflict, see ConflictStats
+volatile int depth; //the oldest prior val readers needed since the last commit, 1 is the val before the newest
+int quiet; //commits since a reader needed the oldest prior val, guarded by the write lock
+volatile Waiters waiters; //transactions blocked in retry until this ref changes
+volatile Ref[] dependents = NO_REFS; //refs derived from this one, replaced, never changed
+Derivation derivation; //how this ref is derived from others, null if it isn't
 LockingTransaction.Info tinfo;
 //IFn validator;
 final long id;
 
 volatile int minHistory = 0;
 volatile int maxHistory = 10;
+volatile boolean asyncWatches = ASYNC_WATCHES;
+//an async ref's notifications in commit order, added to under the write lock, drained by one task at a time
+volatile ConcurrentLinkedQueue<LockingTransaction.Notify> notifications;
+volatile int draining;
+
+static final boolean ASYNC_WATCHES = System.getProperty("clojure.stm.async-watches", "false").equals("true");
 
 static final AtomicLong ids = new AtomicLong();
 
+//with clojure.stm.lock-stripes set to n, refs share a table of n locks (rounded up to a power of 2) indexed by id,
+//instead of each ref allocating its own. This saves a lock per written ref at the cost of false sharing: a commit
+//blocks or conflicts with commits and ensures on unrelated refs of the same stripe, ensure takes the stripe's write
+//lock, and a :validate-ensures check retries when any ref of the stripe is being committed
+static final ReentrantReadWriteLock[] STRIPES = makeStripes(Integer.getInteger("clojure.stm.lock-stripes", 0));
+
+static ReentrantReadWriteLock[] makeStripes(int n){
+	if(n <= 0)
+		return null;
+	int size = Integer.highestOneBit(n);
+	if(size < n)
+		size <<= 1;
+	ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[size];
+	for(int i = 0; i < size; i++)
+		stripes[i] = new ReentrantReadWriteLock();
+	return stripes;
+}
+
+//history shrinks by one val after this many commits without a reader needing the oldest one
+static final int SHRINK_AFTER = 32;
+//a ref that hasn't been committed while this many other commits happened drops its history
+static final long IDLE_POINTS = 1 << 16;
+
+static final AtomicIntegerFieldUpdater<Ref> FAULTS =
+		AtomicIntegerFieldUpdater.newUpdater(Ref.class, "faults");
+static final AtomicReferenceFieldUpdater<Ref, ReentrantReadWriteLock> LOCK =
+		AtomicReferenceFieldUpdater.newUpdater(Ref.class, ReentrantReadWriteLock.class, "lock");
+static final AtomicReferenceFieldUpdater<Ref, ConflictStats> STATS =
+		AtomicReferenceFieldUpdater.newUpdater(Ref.class, ConflictStats.class, "stats");
+static final Ref[] NO_REFS = new Ref[0];
+
+static final AtomicIntegerFieldUpdater<Ref> DRAINING =
+		AtomicIntegerFieldUpdater.newUpdater(Ref.class, "draining");
+static final AtomicReferenceFieldUpdater<Ref, Waiters> WAITERS =
+		AtomicReferenceFieldUpdater.newUpdater(Ref.class, Waiters.class, "waiters");
+
+//a list that is replaced, never changed. A waiter woken through another ref stays until the next add or commit
+static final class Waiters{
+	final LockingTransaction.Waiter waiter;
+	final Waiters next;
+
+	Waiters(LockingTransaction.Waiter waiter, Waiters next){
+		this.waiter = waiter;
+		this.next = next;
+	}
+}
+
 public Ref(Object initVal) {
 	this(initVal, null);
 }
@@ -87,25 +153,238 @@ public Ref(Object initVal) {
 public Ref(Object initVal,IPersistentMap meta) {
     super(meta);
     this.id = ids.getAndIncrement();
-	this.faults = new AtomicInteger();
-	this.lock = new ReentrantReadWriteLock();
 	tvals = new TVal(initVal, 0);
 }
 
+//the order in which commits take write locks: by id, or by stripe when refs share striped locks, since two refs
+//in id order may have their stripes in the opposite order
+long lockOrder(){
+	return STRIPES == null ? id : (id & (STRIPES.length - 1));
+}
+
+static final java.util.Comparator<Ref> LOCK_ORDER = new java.util.Comparator<Ref>(){
+	public int compare(Ref a, Ref b){
+		long x = a.lockOrder(), y = b.lockOrder();
+		return x < y ? -1 : (x == y ? 0 : 1);
+	}
+};
+
+ReentrantReadWriteLock getLock(){
+	if(STRIPES != null)
+		return STRIPES[(int) id & (STRIPES.length - 1)];
+	ReentrantReadWriteLock l = lock;
+	if(l == null)
+		{
+		LOCK.compareAndSet(this, null, new ReentrantReadWriteLock());
+		l = lock;
+		}
+	return l;
+}
+
+//a ref without a lock has never been written in a transaction
+boolean isWriteLocked(){
+	ReentrantReadWriteLock l = STRIPES == null ? lock : getLock();
+	return l != null && l.isWriteLocked();
+}
+
+void fault(){
+	FAULTS.incrementAndGet(this);
+}
+
+void addWaiter(LockingTransaction.Waiter w){
+	for(;;)
+		{
+		Waiters old = waiters;
+		Waiters ws = new Waiters(w, null);
+		for(Waiters o = old; o != null; o = o.next)
+			{
+			if(!o.waiter.woken())
+				ws = new Waiters(o.waiter, ws);
+			}
+		if(WAITERS.compareAndSet(this, old, ws))
+			return;
+		}
+}
+
+//called by a commit with the write lock held, the watches are called on Agent.soloExecutor
+//queues n, called with the write lock held. Returns true if the caller has to start the drain, with drainLater
+//once the commit is done
+boolean notifyLater(LockingTransaction.Notify n){
+	ConcurrentLinkedQueue<LockingTransaction.Notify> q = notifications;
+	if(q == null)
+		notifications = q = new ConcurrentLinkedQueue<LockingTransaction.Notify>();
+	q.add(n);
+	return DRAINING.compareAndSet(this, 0, 1);
+}
+
+void drainLater(){
+	try
+		{
+		Agent.soloExecutor.execute(new Runnable(){
+			public void run(){
+				drainNotifications();
+			}
+		});
+		}
+	catch(RuntimeException e)
+		{
+		//let a later commit start the drain
+		draining = 0;
+		throw e;
+		}
+}
+
+//calls the watches for every queued notification, so a burst of commits costs one task
+void drainNotifications(){
+	ConcurrentLinkedQueue<LockingTransaction.Notify> q = notifications;
+	do
+		{
+		LockingTransaction.Notify n;
+		while((n = q.poll()) != null)
+			{
+			try
+				{
+				notifyWatches(n.oldval, n.newval);
+				}
+			catch(Throwable e)
+				{
+				//one failing watch doesn't hold up the notifications after it
+				Thread t = Thread.currentThread();
+				t.getUncaughtExceptionHandler().uncaughtException(t, e);
+				}
+			}
+		draining = 0;
+		} while(!q.isEmpty() && DRAINING.compareAndSet(this, 0, 1));
+}
+
+//a ref whose val is computed from the vals of its sources, by each commit that writes one of them. It's created
+//after its sources, so its id is greater, and commits that lock and compute derived refs in id order compute the
+//sources first
+static class Derivation{
+	final Ref[] sources;
+	final IFn fn;
+	final IFn update;
+
+	Derivation(Ref[] sources, IFn fn, IFn update){
+		this.sources = sources;
+		this.fn = fn;
+		this.update = update;
+	}
+
+	//the new val, given the old one and the vals of the sources before and after
+	Object compute(Object old, Object[] before, Object[] after){
+		if(update == null)
+			return fn.applyTo(ArraySeq.create(after));
+		return update.invoke(old, LazilyPersistentVector.createOwning(before),
+		                     LazilyPersistentVector.createOwning(after));
+	}
+}
+
+//a ref with the val (apply fn sources), kept up to date by every commit that writes one of the sources. With
+//update, a commit instead gets the new val from (update old-val old-source-vals new-source-vals)
+static public Ref derive(IFn fn, IFn update, ISeq sources){
+	if(LockingTransaction.isRunning())
+		throw new IllegalStateException("Can't create a derived Ref in a transaction");
+	Ref[] srcs = (Ref[]) RT.seqToTypedArray(Ref.class, sources);
+	Ref d = new Ref(null);
+	d.derivation = new Derivation(srcs, fn, update);
+	Ref[] order = srcs.clone();
+	java.util.Arrays.sort(order, LOCK_ORDER);
+	//with the sources locked, no commit is writing them: the ones before us see d, the ones after compute from
+	//the val computed here
+	int n = 0;
+	try
+		{
+		for(; n < order.length; n++)
+			order[n].getLock().writeLock().lock();
+		Object[] vals = new Object[srcs.length];
+		for(int i = 0; i < srcs.length; i++)
+			{
+			vals[i] = srcs[i].tvals.val;
+			srcs[i].addDependent(d);
+			}
+		//older readers fault on d and retry, they'd see it inconsistent with the sources
+		d.tvals = new TVal(fn.applyTo(ArraySeq.create(vals)), LockingTransaction.currentPoint());
+		}
+	finally
+		{
+		while(n > 0)
+			order[--n].getLock().writeLock().unlock();
+		}
+	return d;
+}
+
+//called with the write lock held
+void addDependent(Ref d){
+	Ref[] ds = dependents;
+	for(Ref r : ds)
+		{
+		if(r == d)
+			return;
+		}
+	Ref[] more = java.util.Arrays.copyOf(ds, ds.length + 1);
+	more[ds.length] = d;
+	dependents = more;
+}
+
+//called by a commit after it installed a new val
+void wakeWaiters(){
+	for(Waiters ws = WAITERS.getAndSet(this, null); ws != null; ws = ws.next)
+		ws.waiter.wake();
+}
+
+void readAt(int d){
+	if(d > depth)
+		depth = d;
+}
+
+//how many prior vals a commit keeps, given hcount now. Called with the write lock held.
+//history grows fast when readers fault, by one when they read the oldest val, and shrinks slowly otherwise
+int historyLimit(int hcount){
+	int keep = hcount;
+	if(faults > 0)
+		{
+		keep = Math.max(hcount + 1, hcount * 2);
+		faults = 0;
+		quiet = 0;
+		}
+	else if(hcount > 0 && depth >= hcount)
+		{
+		//the new val will push the oldest one out of reach
+		keep = hcount + 1;
+		quiet = 0;
+		}
+	else if(++quiet > SHRINK_AFTER)
+		{
+		keep = hcount - 1;
+		quiet = 0;
+		}
+	depth = 0;
+	return Math.max(minHistory, Math.min(keep, maxHistory));
+}
+
 //the latest val
 
 // ok out of transaction
 Object currentVal(){
+	//a commit in progress holds the write lock, wait for it so we don't see only part of it
+	if(!isWriteLocked())
+		{
+		TVal tv = tvals;
+		if(tv != null)
+			return tv.val;
+		throw new IllegalStateException(this.toString() + " is unbound.");
+		}
 	try
 		{
-		lock.readLock().lock();
+		getLock().readLock().lock();
 		if(tvals != null)
 			return tvals.val;
 		throw new IllegalStateException(this.toString() + " is unbound.");
 		}
 	finally
 		{
-		lock.readLock().unlock();
+		getLock().readLock().unlock();
 		}
 }
 
@@ -177,53 +456,58 @@ public void touch(){
 
 //*/
 boolean isBound(){
-	try
-		{
-		lock.readLock().lock();
-		return tvals != null;
-		}
-	finally
-		{
-		lock.readLock().unlock();
-		}
+	return tvals != null;
 }
 
 
 public void trimHistory(){
 	try
 		{
-		lock.writeLock().lock();
+		getLock().writeLock().lock();
 		if(tvals != null)
-			{
-			tvals.next = tvals;
-			tvals.prior = tvals;
-			}
+			cutAfter(tvals, 0);
 		}
 	finally
 		{
-		lock.writeLock().unlock();
+		getLock().writeLock().unlock();
 		}
 }
 
 public int getHistoryCount(){
 	try
 		{
-		lock.writeLock().lock();
+		getLock().writeLock().lock();
 		return histCount();
 		}
 	finally
 		{
-		lock.writeLock().unlock();
+		getLock().writeLock().unlock();
 		}	
 }
 
+//adds val as the newest version, keeping at most keep prior versions, and those pinned snapshots need
+void install(Object val, long point, int keep){
+	cutAfter(tvals = new TVal(val, point, tvals), keep);
+}
+
+private static void cutAfter(TVal tv, int keep){
+	for(int i = 0; i < keep && tv != null; i++)
+		tv = tv.prior;
+	//the oldest pinned snapshot reads the newest val at or before its point
+	long pinned = LockingTransaction.oldestPin;
+	while(tv != null && tv.point > pinned)
+		tv = tv.prior;
+	if(tv != null)
+		tv.prior = null;
+}
+
 int histCount(){
 	if(tvals == null)
 		return 0;
 	else
 		{
 		int count = 0;
-		for(TVal tv = tvals.next;tv != tvals;tv = tv.next)
+		for(TVal tv = tvals.prior;tv != null;tv = tv.prior)
 			count++;
 		return count;
 		}
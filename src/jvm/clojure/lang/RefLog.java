@@ -0,0 +1,386 @@
+/**
+ *   Copyright (c) Rich Hickey. All rights reserved.
+ *   The use and distribution terms for this software are covered by the
+ *   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ *   which can be found in the file epl-v10.html at the root of this distribution.
+ *   By using this software in any fashion, you are agreeing to be bound by
+ * 	 the terms of this license.
+ *   You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//what a transaction attempt did to each ref it touched, in the order it touched them
+//entries are found by ref identity, with a linear scan while there are few of them and an open addressing
+//index on ref ids beyond that. clear() keeps the arrays, so an attempt that fits in them allocates nothing.
+final class RefLog{
+
+static final int VAL = 1;      //has an in-transaction val
+static final int SET = 2;      //set or altered, write locked
+static final int ENSURE = 4;   //holds the ref's read lock
+static final int COMMUTE = 8;  //has commute fns
+static final int READ = 16;    //read from the ref, the version is in reads, only while tracking reads
+static final int VALIDATE = 32; //ensured without a lock, the version in reads must be current at commit
+static final int DERIVED = 64; //a derived ref computed by the commit, write locked
+
+static final int INLINE = 8;   //entries scanned linearly
+
+Ref[] refs = new Ref[INLINE];
+Object[] vals = new Object[INLINE];
+int[] flags = new int[INLINE];
+LockingTransaction.CFn[] fns = new LockingTransaction.CFn[INLINE];
+LockingTransaction.CFn[] lastFns = new LockingTransaction.CFn[INLINE];
+Ref.TVal[] bases = new Ref.TVal[INLINE]; //the version a commuted val was computed from on commit
+Ref.TVal[] reads = new Ref.TVal[INLINE];
+int count;
+int valCount;
+
+//nested scopes. Entries below floor predate the current scope, and the first change to one in the scope saves
+//its old state to the undo log, so the scope can be rolled back
+int scope;
+int floor;
+int scopes;
+int[] savedIn = new int[INLINE];
+int[] undoIdx = new int[INLINE];
+int[] undoFlags = new int[INLINE];
+Object[] undoVals = new Object[INLINE];
+LockingTransaction.CFn[] undoLast = new LockingTransaction.CFn[INLINE];
+ISeq[] undoArgs = new ISeq[INLINE];
+int undoCount;
+
+static class Mark{
+	final int count;
+	final int valCount;
+	final int undoCount;
+	final int scope;
+	final int floor;
+
+	Mark(int count, int valCount, int undoCount, int scope, int floor){
+		this.count = count;
+		this.valCount = valCount;
+		this.undoCount = undoCount;
+		this.scope = scope;
+		this.floor = floor;
+	}
+}
+
+//slot -> entry index + 1, 0 is empty. null while count <= INLINE
+int[] index;
+int[] order;
+
+int size(){
+	return count;
+}
+
+boolean hasVals(){
+	return valCount > 0;
+}
+
+Ref ref(int i){
+	return refs[i];
+}
+
+Object val(int i){
+	return vals[i];
+}
+
+boolean is(int i, int flag){
+	return (flags[i] & flag) != 0;
+}
+
+//the entry for ref, or -1
+int find(Ref ref){
+	if(index == null)
+		{
+		for(int i = 0; i < count; i++)
+			{
+			if(refs[i] == ref)
+				return i;
+			}
+		return -1;
+		}
+	int mask = index.length - 1;
+	for(int slot = hash(ref) & mask; index[slot] != 0; slot = (slot + 1) & mask)
+		{
+		int i = index[slot] - 1;
+		if(refs[i] == ref)
+			return i;
+		}
+	return -1;
+}
+
+boolean has(Ref ref, int flag){
+	int i = find(ref);
+	return i >= 0 && is(i, flag);
+}
+
+//the entry for ref, added if needed
+int add(Ref ref){
+	int i = find(ref);
+	if(i >= 0)
+		return i;
+	if(count == refs.length)
+		grow();
+	i = count++;
+	refs[i] = ref;
+	if(index != null)
+		{
+		if(count * 2 > index.length)
+			rehash(index.length * 2);
+		else
+			insert(i);
+		}
+	else if(count > INLINE)
+		rehash(INLINE * 4);
+	return i;
+}
+
+void set(int i, int flag){
+	save(i);
+	flags[i] |= flag;
+}
+
+void unset(int i, int flag){
+	save(i);
+	flags[i] &= ~flag;
+}
+
+void setVal(int i, Object val){
+	save(i);
+	if(!is(i, VAL))
+		{
+		flags[i] |= VAL;
+		valCount++;
+		}
+	vals[i] = val;
+}
+
+void addFn(int i, LockingTransaction.CFn f){
+	save(i);
+	flags[i] |= COMMUTE;
+	if(fns[i] == null)
+		fns[i] = f;
+	else
+		lastFns[i].next = f;
+	lastFns[i] = f;
+}
+
+LockingTransaction.CFn fns(int i){
+	return fns[i];
+}
+
+LockingTransaction.CFn lastFn(int i){
+	return lastFns[i];
+}
+
+//call before changing the args of lastFn(i)
+void touchFn(int i){
+	save(i);
+}
+
+void setRead(int i, Ref.TVal ver){
+	set(i, READ);
+	reads[i] = ver;
+}
+
+Ref.TVal read(int i){
+	return reads[i];
+}
+
+Ref.TVal base(int i){
+	return bases[i];
+}
+
+void setBase(int i, Ref.TVal base){
+	bases[i] = base;
+}
+
+//entry indexes in the order in which refs are write locked, see Ref.lockOrder()
+int[] sorted(){
+	if(order == null || order.length < count)
+		order = new int[refs.length];
+	for(int i = 0; i < count; i++)
+		order[i] = i;
+	//insertion sort, the entries are usually few and often already in id order
+	for(int i = 1; i < count; i++)
+		{
+		int e = order[i];
+		long key = refs[e].lockOrder();
+		int j = i - 1;
+		for(; j >= 0 && refs[order[j]].lockOrder() > key; j--)
+			order[j + 1] = order[j];
+		order[j + 1] = e;
+		}
+	return order;
+}
+
+void clear(){
+	if(count == 0)
+		return;
+	Arrays.fill(refs, 0, count, null);
+	Arrays.fill(vals, 0, count, null);
+	Arrays.fill(flags, 0, count, 0);
+	Arrays.fill(fns, 0, count, null);
+	Arrays.fill(lastFns, 0, count, null);
+	Arrays.fill(bases, 0, count, null);
+	Arrays.fill(reads, 0, count, null);
+	Arrays.fill(savedIn, 0, count, 0);
+	if(index != null)
+		Arrays.fill(index, 0);
+	count = 0;
+	valCount = 0;
+	Arrays.fill(undoVals, 0, undoCount, null);
+	Arrays.fill(undoLast, 0, undoCount, null);
+	Arrays.fill(undoArgs, 0, undoCount, null);
+	undoCount = 0;
+	scope = 0;
+	floor = 0;
+	scopes = 0;
+}
+
+//starts a nested scope
+Mark enter(){
+	Mark mark = new Mark(count, valCount, undoCount, scope, floor);
+	scope = ++scopes;
+	floor = count;
+	return mark;
+}
+
+//ends the scope begun with mark, keeping its changes. The undo records stay, the enclosing scope may still
+//need them
+void leave(Mark mark){
+	scope = mark.scope;
+	floor = mark.floor;
+}
+
+//true if the scope begun with mark can be rolled back. It can't if it changed a ref that was ensured before it:
+//a read lock given up in the scope can't be taken back
+boolean canRollback(Mark mark){
+	for(int u = mark.undoCount; u < undoCount; u++)
+		{
+		if((undoFlags[u] & ENSURE) != 0)
+			return false;
+		}
+	return true;
+}
+
+//the refs that are set now and were set or added to the log in the scope begun with mark. After a rollback, the
+//ones no longer set are claimed by the transaction for nothing
+ArrayList<Ref> setSince(Mark mark){
+	ArrayList<Ref> set = new ArrayList<Ref>();
+	for(int u = mark.undoCount; u < undoCount; u++)
+		{
+		int i = undoIdx[u];
+		if((flags[i] & SET) != 0 && (undoFlags[u] & SET) == 0)
+			set.add(refs[i]);
+		}
+	for(int i = mark.count; i < count; i++)
+		{
+		if((flags[i] & SET) != 0)
+			set.add(refs[i]);
+		}
+	return set;
+}
+
+//restores the state at mark, releasing read locks of ensures made in the scope, and ends the scope
+void rollback(Mark mark){
+	for(int u = undoCount - 1; u >= mark.undoCount; u--)
+		{
+		int i = undoIdx[u];
+		if((flags[i] & ENSURE) != 0 && (undoFlags[u] & ENSURE) == 0)
+			refs[i].getLock().readLock().unlock();
+		flags[i] = undoFlags[u];
+		vals[i] = undoVals[u];
+		LockingTransaction.CFn last = undoLast[u];
+		lastFns[i] = last;
+		if(last == null)
+			fns[i] = null;
+		else
+			{
+			last.next = null;
+			last.args = undoArgs[u];
+			}
+		savedIn[i] = 0;
+		undoVals[u] = null;
+		undoLast[u] = null;
+		undoArgs[u] = null;
+		}
+	undoCount = mark.undoCount;
+	for(int i = mark.count; i < count; i++)
+		{
+		if((flags[i] & ENSURE) != 0)
+			refs[i].getLock().readLock().unlock();
+		refs[i] = null;
+		vals[i] = null;
+		flags[i] = 0;
+		fns[i] = null;
+		lastFns[i] = null;
+		bases[i] = null;
+		reads[i] = null;
+		savedIn[i] = 0;
+		}
+	count = mark.count;
+	valCount = mark.valCount;
+	if(index != null)
+		rehash(index.length);
+	leave(mark);
+}
+
+private void save(int i){
+	if(i >= floor || savedIn[i] == scope)
+		return;
+	if(undoCount == undoIdx.length)
+		{
+		int n = undoIdx.length * 2;
+		undoIdx = Arrays.copyOf(undoIdx, n);
+		undoFlags = Arrays.copyOf(undoFlags, n);
+		undoVals = Arrays.copyOf(undoVals, n);
+		undoLast = Arrays.copyOf(undoLast, n);
+		undoArgs = Arrays.copyOf(undoArgs, n);
+		}
+	int u = undoCount++;
+	undoIdx[u] = i;
+	undoFlags[u] = flags[i];
+	undoVals[u] = vals[i];
+	undoLast[u] = lastFns[i];
+	undoArgs[u] = lastFns[i] == null ? null : lastFns[i].args;
+	savedIn[i] = scope;
+}
+
+private static int hash(Ref ref){
+	long h = ref.id * 0x9E3779B97F4A7C15L;
+	return (int) (h >>> 32);
+}
+
+private void insert(int i){
+	int mask = index.length - 1;
+	int slot = hash(refs[i]) & mask;
+	while(index[slot] != 0)
+		slot = (slot + 1) & mask;
+	index[slot] = i + 1;
+}
+
+private void rehash(int size){
+	if(index == null || index.length != size)
+		index = new int[size];
+	else
+		Arrays.fill(index, 0);
+	for(int i = 0; i < count; i++)
+		insert(i);
+}
+
+private void grow(){
+	int n = refs.length * 2;
+	refs = Arrays.copyOf(refs, n);
+	vals = Arrays.copyOf(vals, n);
+	flags = Arrays.copyOf(flags, n);
+	fns = Arrays.copyOf(fns, n);
+	lastFns = Arrays.copyOf(lastFns, n);
+	bases = Arrays.copyOf(bases, n);
+	reads = Arrays.copyOf(reads, n);
+	savedIn = Arrays.copyOf(savedIn, n);
+}
+}
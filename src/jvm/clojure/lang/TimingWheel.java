@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) Rich Hickey. All rights reserved.
+ * The use and distribution terms for this software are covered by the
+ * Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+ * which can be found in the file epl-v10.html at the root of this distribution.
+ * By using this software in any fashion, you are agreeing to be bound by
+ * the terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ **/
+
+package clojure.lang;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel: runs many timeouts on a single thread.
+// The wheel is an array of buckets, one per tick. A timeout goes in the bucket of the tick at which it expires, and
+// counts the number of full rotations left before then. Each tick, the worker thread runs the expired timeouts of one
+// bucket. Scheduling and cancelling are O(1), and the worker parks while no timeouts are pending.
+public class TimingWheel {
+
+    static final int NEW = 0;
+    static final int STARTED = 1;
+    static final int CANCELLED = 2;
+    static final int EXPIRED = 3;
+
+    public static class Timeout {
+        final Runnable task;
+        final long delayNanos;
+        final long periodNanos; // 0 if not periodic
+        final AtomicInteger state = new AtomicInteger(NEW);
+        TimingWheel wheel;
+        long deadline;
+        long rounds;
+        Timeout next; // in bucket
+
+        public Timeout(Runnable task, long delay, long period, TimeUnit unit) {
+            this.task = task;
+            this.delayNanos = unit.toNanos(delay);
+            this.periodNanos = unit.toNanos(period);
+        }
+
+        // Returns true if this stopped the timeout from running (again).
+        public boolean cancel() {
+            while (true) {
+                int s = state.get();
+                if (s == CANCELLED || s == EXPIRED)
+                    return false;
+                if (state.compareAndSet(s, CANCELLED)) {
+                    if (s == STARTED)
+                        wheel.pending.decrementAndGet();
+                    return true;
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isDone() {
+            int s = state.get();
+            return s == CANCELLED || s == EXPIRED;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final String name;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pending = new AtomicInteger(); // started, not yet expired or cancelled
+    private volatile Thread worker = null;
+    private volatile boolean parked = false;
+    private long startTime;
+    private long tick = 0;
+
+    public TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, String name) {
+        int n = 1;
+        while (n < ticksPerWheel)
+            n <<= 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.name = name;
+    }
+
+    // Starts the timeout: its delay counts from now. Does nothing if the timeout was cancelled.
+    public Timeout start(Timeout timeout) {
+        // set up before the timeout is published as started: a cancel that sees STARTED undoes the count on wheel
+        timeout.wheel = this;
+        timeout.deadline = System.nanoTime() + timeout.delayNanos;
+        pending.incrementAndGet();
+        if (!timeout.state.compareAndSet(NEW, STARTED)) {
+            pending.decrementAndGet();
+            return timeout;
+        }
+        added.add(timeout);
+        if (worker == null)
+            startWorker();
+        else if (parked)
+            LockSupport.unpark(worker);
+        return timeout;
+    }
+
+    private synchronized void startWorker() {
+        if (worker != null)
+            return;
+        startTime = System.nanoTime();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, name);
+        t.setDaemon(true);
+        worker = t;
+        t.start();
+    }
+
+    private void work() {
+        while (true) {
+            if (pending.get() == 0 && added.isEmpty()) {
+                parked = true;
+                if (pending.get() == 0 && added.isEmpty())
+                    LockSupport.park(this);
+                parked = false;
+                // skip the ticks we slept through: their buckets only hold cancelled timeouts
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+            }
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                if (System.nanoTime() - deadline < 0)
+                    continue; // woken up early, e.g. by start
+            }
+            transferAdded();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null)
+            insert(timeout, tick);
+    }
+
+    // Puts timeout in the bucket of the tick at which it expires. The first tick whose bucket will still be visited
+    // is from.
+    private void insert(Timeout timeout, long from) {
+        if (timeout.state.get() != STARTED)
+            return;
+        long ticks = Math.max((timeout.deadline - startTime) / tickNanos, from);
+        timeout.rounds = (ticks - from) / buckets.length;
+        int i = (int) (ticks & mask);
+        timeout.next = buckets[i];
+        buckets[i] = timeout;
+    }
+
+    private void expire(int i) {
+        Timeout timeout = buckets[i];
+        Timeout kept = null;
+        buckets[i] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.state.get() != STARTED) {
+                // cancelled: drop
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout.next = kept;
+                kept = timeout;
+            } else {
+                run(timeout);
+            }
+            timeout = next;
+        }
+        while (kept != null) {
+            Timeout next = kept.next;
+            kept.next = buckets[i];
+            buckets[i] = kept;
+            kept = next;
+        }
+    }
+
+    private void run(Timeout timeout) {
+        if (timeout.periodNanos == 0) {
+            if (!timeout.state.compareAndSet(STARTED, EXPIRED))
+                return;
+            pending.decrementAndGet();
+        }
+        try {
+            timeout.task.run();
+        } catch (Throwable e) {
+            // keep the wheel going
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
+        if (timeout.periodNanos != 0 && timeout.state.get() == STARTED) {
+            timeout.deadline += timeout.periodNanos;
+            insert(timeout, tick + 1);
+        }
+    }
+
+}
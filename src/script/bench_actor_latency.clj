@@ -0,0 +1,50 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Message latency between actors, for ping-pong and pipeline patterns.
+;;
+;; Run with:
+;;   java -cp clojure.jar clojure.main src/script/bench_actor_latency.clj
+;; and compare with -Dclojure.actor.affinity=false, which hands every
+;; woken-up actor to the executor instead of running it on the sender's
+;; carrier.
+
+(defn ping-pong
+  "Round trips per second between two actors."
+  [n]
+  (let [done (promise)
+        pong (spawn (behavior [] [ping i] (send ping i)))
+        ping (spawn (behavior [] [i]
+                      (if (< i n)
+                        (send pong *actor* (inc i))
+                        (deliver done true))))
+        start (System/nanoTime)]
+    (send ping 0)
+    @done
+    (/ (* n 1e9) (- (System/nanoTime) start))))
+
+(defn pipeline
+  "Messages per second through a pipeline of k actors."
+  [k n]
+  (let [done (promise)
+        last-stage (spawn (behavior [] [i] (when (= i (dec n)) (deliver done true))))
+        first-stage (reduce (fn [next _] (spawn (behavior [] [i] (send next i))))
+                            last-stage
+                            (range (dec k)))
+        start (System/nanoTime)]
+    (dotimes [i n]
+      (send first-stage i))
+    @done
+    (/ (* n 1e9) (- (System/nanoTime) start))))
+
+(println "affinity:" (System/getProperty "clojure.actor.affinity" "true"))
+(dotimes [round 5]
+  (printf "round %d: ping-pong %.0f round trips/s, pipeline(8) %.0f msgs/s%n"
+          round (ping-pong 100000) (pipeline 8 100000))
+  (flush))
+(shutdown-agents)
@@ -0,0 +1,38 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Loads a cache of Refs, one small transaction per entry, with a dosync
+;; per entry and with sync-batch. Reports entries loaded per second.
+;;
+;; Run with:
+;;   java -cp clojure.jar clojure.main src/script/bench_batch.clj [entries]
+
+(defn load-fns [cache n]
+  (for [i (range n)]
+    #(alter (cache (mod i (count cache))) assoc i (str i))))
+
+(defn run [mode n]
+  (let [cache (vec (repeatedly 1024 #(ref {})))
+        fns (doall (load-fns cache n))
+        start (System/nanoTime)]
+    (case mode
+      :dosync (doseq [f fns] (dosync (f)))
+      :sync-batch (sync-batch fns))
+    (let [secs (/ (- (System/nanoTime) start) 1e9)]
+      (assert (= n (reduce + (map (comp count deref) cache))))
+      (long (/ n secs)))))
+
+(let [n (if-let [n (first *command-line-args*)]
+          (Long/parseLong n)
+          200000)]
+  (printf "entries: %d%n" n)
+  (doseq [mode [:dosync :sync-batch]]
+    (run mode n) ; warm up
+    (printf "%-10s %10d entries/s%n" (name mode) (run mode n))
+    (flush)))
+(shutdown-agents)
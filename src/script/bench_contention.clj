@@ -0,0 +1,59 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Compares the contention managers on a hot Ref: every transaction
+;; alters a few refs of its own, then one shared ref, with some work in
+;; between so transactions overlap. Reports throughput and latency
+;; percentiles.
+;;
+;; Run with:
+;;   java -cp clojure.jar clojure.main src/script/bench_contention.clj [threads]
+
+(defn spin [n]
+  (loop [i 0 x 0] (if (< i n) (recur (inc i) (+ x i)) x)))
+
+(defn run [manager nthreads millis]
+  (let [hot (ref 0)
+        stop (promise)
+        latencies (vec (repeatedly nthreads #(java.util.ArrayList.)))
+        threads (doall
+                  (for [i (range nthreads)]
+                    (let [own (vec (repeatedly 4 #(ref 0)))
+                          ^java.util.ArrayList lat (latencies i)]
+                      (doto (Thread.
+                              (fn []
+                                (while (not (realized? stop))
+                                  (let [start (System/nanoTime)]
+                                    (sync {:contention-manager manager}
+                                      (doseq [r own] (alter r inc))
+                                      (spin 2000)
+                                      (alter hot inc))
+                                    (.add lat (- (System/nanoTime) start))))))
+                        (.start)))))]
+    (Thread/sleep millis)
+    (deliver stop true)
+    (doseq [^Thread t threads] (.join t))
+    (let [all (sort (mapcat seq latencies))
+          n (count all)
+          pct (fn [p] (/ (nth all (min (dec n) (long (* p n)))) 1e3))]
+      {:tx-per-sec (long (/ n (/ millis 1000.0)))
+       :p50-us (pct 0.5)
+       :p99-us (pct 0.99)
+       :max-us (/ (last all) 1e3)})))
+
+(let [nthreads (if-let [n (first *command-line-args*)]
+                 (Long/parseLong n)
+                 (* 2 (.availableProcessors (Runtime/getRuntime))))]
+  (printf "threads: %d%n" nthreads)
+  (doseq [m [:default :greedy :karma :polka :backoff]]
+    (run m nthreads 1000) ; warm up
+    (let [{:keys [tx-per-sec p50-us p99-us max-us]} (run m nthreads 3000)]
+      (printf "%-8s %9d tx/s  p50 %8.1fus  p99 %9.1fus  max %9.1fus%n"
+              (name m) tx-per-sec p50-us p99-us max-us)
+      (flush))))
+(shutdown-agents)
@@ -0,0 +1,33 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Approximate heap bytes per Ref, measured from the used heap before and
+;; after allocating a million of them. Refs that were written in a
+;; transaction also carry their lock.
+;;
+;; Run with:
+;;   java -cp clojure.jar clojure.main src/script/bench_ref_footprint.clj
+
+(def n 1000000)
+
+(defn used-heap []
+  (let [rt (Runtime/getRuntime)]
+    (dotimes [_ 4] (System/gc) (Thread/sleep 100))
+    (- (.totalMemory rt) (.freeMemory rt))))
+
+(defn bytes-per-ref [make]
+  (let [before (used-heap)
+        refs (object-array n)]
+    (dotimes [i n] (aset refs i (make)))
+    (let [after (used-heap)]
+      (aget refs 0) ; keep refs reachable
+      (/ (- after before (* 4 n)) (double n)))))
+
+(printf "read-only ref: %.1f bytes%n" (bytes-per-ref #(ref nil)))
+(printf "written ref:   %.1f bytes%n" (bytes-per-ref #(let [r (ref nil)] (dosync (ref-set r nil)) r)))
+(flush)
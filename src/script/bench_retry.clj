@@ -0,0 +1,58 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Measures the cost of starting and retrying transactions deep in the
+;; stack: each transaction is started under a chain of calls, and its
+;; body reads a shared Ref under another chain, so a retry unwinds
+;; through it. Reports transactions and retries per second, alone and
+;; with every thread writing the same Refs.
+;;
+;; Run with:
+;;   java -cp clojure.jar clojure.main src/script/bench_retry.clj [depth]
+
+(defn deep [n f]
+  (if (zero? n) (f) (+ 0 (deep (dec n) f))))
+
+(defn retries []
+  (reduce + (map :retries (vals (conflict-stats)))))
+
+(defn run [nthreads depth millis]
+  (reset-conflict-stats!)
+  (let [hot (vec (repeatedly 2 #(ref 0)))
+        stop (promise)
+        counts (vec (repeatedly nthreads #(atom 0)))
+        threads (doall
+                  (for [i (range nthreads)]
+                    (doto (Thread.
+                            (fn []
+                              (while (not (realized? stop))
+                                (deep depth
+                                      #(dosync
+                                         (let [r (hot (rand-int 2))]
+                                           (deep depth (fn [] (alter r + 1 (- @r @r)))))
+                                         0))
+                                (swap! (counts i) inc))))
+                      (.start))))]
+    (Thread/sleep millis)
+    (deliver stop true)
+    (doseq [^Thread t threads] (.join t))
+    (let [secs (/ millis 1000.0)]
+      {:tx-per-sec (long (/ (reduce + (map deref counts)) secs))
+       :retries-per-sec (long (/ (retries) secs))})))
+
+(let [depth (if-let [n (first *command-line-args*)]
+              (Long/parseLong n)
+              200)
+      procs (.availableProcessors (Runtime/getRuntime))]
+  (printf "depth: %d%n" depth)
+  (doseq [nthreads [1 (max 8 (* 2 procs))]]
+    (run nthreads depth 2000) ; warm up
+    (let [{:keys [tx-per-sec retries-per-sec]} (run nthreads depth 5000)]
+      (printf "threads %3d %9d tx/s %9d retries/s%n" nthreads tx-per-sec retries-per-sec)
+      (flush))))
+(shutdown-agents)
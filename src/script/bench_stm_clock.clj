@@ -0,0 +1,46 @@
+;   Copyright (c) Rich Hickey. All rights reserved.
+;   The use and distribution terms for this software are covered by the
+;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
+;   which can be found in the file epl-v10.html at the root of this distribution.
+;   By using this software in any fashion, you are agreeing to be bound by
+;   the terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+;; Contention on the transaction clock: every thread runs transactions on
+;; its own refs, so the only shared state is the STM itself.
+;;
+;; Run with:
+;;   java -cp clojure.jar clojure.main src/script/bench_stm_clock.clj [threads] [write-percent]
+
+(defn run [nthreads write-percent millis]
+  (let [refs (vec (repeatedly nthreads #(ref 0)))
+        stop (promise)
+        counts (vec (repeatedly nthreads #(java.util.concurrent.atomic.AtomicLong.)))
+        threads (doall
+                  (for [i (range nthreads)]
+                    (let [r (refs i)
+                          ^java.util.concurrent.atomic.AtomicLong c (counts i)]
+                      (doto (Thread.
+                              (fn []
+                                (loop [k 0]
+                                  (when-not (realized? stop)
+                                    (if (< (mod k 100) write-percent)
+                                      (dosync (alter r inc))
+                                      (dosync @r))
+                                    (.incrementAndGet c)
+                                    (recur (inc k))))))
+                        (.start)))))]
+    (Thread/sleep millis)
+    (deliver stop true)
+    (doseq [^Thread t threads] (.join t))
+    (/ (reduce + (map #(.get ^java.util.concurrent.atomic.AtomicLong %) counts))
+       (/ millis 1000.0))))
+
+(let [[nthreads write-percent] (map #(Long/parseLong %) *command-line-args*)
+      nthreads (or nthreads (.availableProcessors (Runtime/getRuntime)))
+      write-percent (or write-percent 10)]
+  (printf "threads: %d, writes: %d%%%n" nthreads write-percent)
+  (dotimes [round 5]
+    (printf "round %d: %.0f transactions/s%n" round (run nthreads write-percent 2000))
+    (flush)))
+(shutdown-agents)
@@ -116,3 +116,84 @@
         (send (spawn beh2) p2)
         (is (= (deref p1 1000 false) 1))
         (is (= (deref p2 1000 false) 2))))))
+
+(deftest await-actors-test
+  (let [n 100
+        done (atom 0)
+        b (behavior [] [] (Thread/sleep 1) (swap! done inc))
+        a (spawn b)]
+    (dotimes [_ n]
+      (send a))
+    (is (await-actors 5000))
+    (is (= n @done))
+    (is (= 0 (.getPendingCount a)))))
+
+(deftest send-after-test
+  (let [received (atom [])
+        a (spawn (behavior [] [x] (swap! received conj x)))
+        start (System/nanoTime)
+        p (promise)
+        b (spawn (behavior [] [] (deliver p (System/nanoTime))))]
+    (send-after 50 b)
+    (is (>= (- (deref p 5000 Long/MAX_VALUE) start) (* 50 1000000)))
+    (send-after 20 a :sent)
+    (is (cancel-send (send-after 20 a :cancelled)))
+    (try
+      (dosync
+        (send-after 20 a :rolled-back)
+        (throw (Exception.)))
+      (catch Exception e nil))
+    (Thread/sleep 200)
+    (is (= [:sent] @received))))
+
+(deftest send-every-test
+  (let [n (atom 0)
+        a (spawn (behavior [] [] (swap! n inc)))
+        timer (send-every 10 a)]
+    (Thread/sleep 200)
+    (is (cancel-send timer))
+    (await-actors 1000)
+    (let [seen @n]
+      (is (< 2 seen))
+      (Thread/sleep 50)
+      (is (= seen @n)))))
+
+(deftest shutdown-actors-drains
+  (let [n 100
+        done (promise)
+        b (spawn (behavior [] [i] (when (zero? i) (deliver done true))))
+        a (spawn (behavior [] [i]
+                   (send b i)
+                   (when (pos? i) (send *actor* (dec i)))))]
+    (try
+      (send a n)
+      (let [{:keys [drained busy]} (shutdown-actors 5000)]
+        (is drained)
+        (is (= [] busy))
+        (is (realized? done) "Messages sent between actors were not processed.")
+        (is (thrown? IllegalStateException (send a 0))))
+      (finally
+        (restart-actors)))))
+
+(deftest shutdown-actors-busy
+  (let [started (promise)
+        done (atom 0)
+        a (spawn (behavior [] [block?]
+                   (when block?
+                     (deliver started true)
+                     (try
+                       (Thread/sleep 10000)
+                       (catch InterruptedException e nil)))
+                   (swap! done inc)))]
+    (try
+      (send a true)
+      (send a false)
+      (is (deref started 5000 false))
+      (let [{:keys [drained busy]} (shutdown-actors 100)]
+        (is (not drained))
+        (is (= [a] busy)))
+      (is (thrown? IllegalStateException (send a false)))
+      (finally
+        (restart-actors)))
+    (is (await-actors 5000))
+    (is (= 2 @done))))
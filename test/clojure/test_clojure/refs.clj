@@ -10,7 +10,8 @@
 
 
 (ns clojure.test-clojure.refs
-  (:use clojure.test))
+  (:use clojure.test)
+  (:require [clojure.java.shell :as sh]))
 
 ; http://clojure.org/refs
 
@@ -20,3 +21,437 @@
 ; ensure ref-set alter commute
 ; set-validator get-validator
 
+
+(deftest read-only-transactions
+  (let [a (ref 1)
+        b (ref 2)]
+    (is (= 3 (sync {:read-only true} (+ @a @b))))
+    (is (= 1 (sync {:read-only true} (ensure a))))
+    (is (thrown? IllegalStateException (sync {:read-only true} (ref-set a 10))))
+    (is (thrown? IllegalStateException (sync {:read-only true} (commute a inc))))
+    (is (= 1 @a))
+    (testing "nested transactions join the outer one"
+      (is (= 2 (dosync (sync {:read-only true} (alter a inc)))))
+      (is (= 2 @a)))))
+
+(deftest snapshot-reads-under-contention
+  (let [accounts (vec (repeatedly 8 #(ref 100)))
+        stop (atom false)
+        transfer (fn []
+                   (let [r (java.util.Random.)]
+                     (while (not @stop)
+                       (let [from (accounts (.nextInt r 8))
+                             to (accounts (.nextInt r 8))]
+                         (dosync
+                           (alter from dec)
+                           (alter to inc))))))
+        writers (doall (repeatedly 3 #(future (transfer))))
+        sums (doall (for [_ (range 2000)]
+                      (sync {:read-only true} (reduce + (map deref accounts)))))]
+    (reset! stop true)
+    (doseq [w writers] @w)
+    (is (every? #(= 800 %) sums))
+    (is (= 800 (reduce + (map deref accounts))))))
+
+(deftest contention-managers
+  (doseq [m [:default :greedy :karma :polka :backoff]]
+    (testing (name m)
+      (let [hot (ref 0)
+            workers (doall (for [_ (range 4)]
+                             (future (dotimes [_ 200]
+                                       (sync {:contention-manager m}
+                                         (alter hot inc))))))]
+        (doseq [w workers] @w)
+        (is (= 800 @hot)))))
+  (is (thrown? IllegalArgumentException (sync {:contention-manager :unknown} 1))))
+
+(deftest conflict-statistics
+  (reset-conflict-stats!)
+  (let [hot (ref 0)
+        workers (doall (for [_ (range 4)]
+                         (future (dotimes [_ 100]
+                                   (dosync (Thread/sleep 1) (alter hot inc))))))]
+    (doseq [w workers] @w)
+    (is (= 400 @hot))
+    (let [by-ref (conflict-stats hot)
+          sites (conflict-stats)]
+      (is (= (set (keys by-ref))
+             #{:lock-timeouts :stale :history-faults :barged :waits :barges-lost :barges-won}))
+      ;; other namespaces' transactions may be counted too, only this one's site is known
+      (let [here (filter #(.startsWith ^String (key %) "clojure.test-clojure.refs:") sites)
+            counts (val (first here))]
+        (is (= 1 (count here)))
+        (is (pos? (:retries counts)))
+        (is (= (:retries counts)
+               (- (reduce + (vals counts)) (:retries counts))))))))
+
+(deftest adaptive-history
+  (let [r (ref 0)
+        started (promise)
+        go-on (promise)
+        reader (future (dosync (deliver started true) @go-on @r))]
+    @started
+    (dotimes [_ 3] (dosync (alter r inc)))
+    (deliver go-on true)
+    (is (= 3 @reader))
+    (testing "a history fault grows the history on the next commit"
+      (dosync (alter r inc))
+      (is (= 1 (ref-history-count r))))
+    (testing "history no reader needs shrinks again"
+      (dotimes [_ 40] (dosync (alter r inc)))
+      (is (= 0 (ref-history-count r))))
+    (testing "min-history is kept"
+      (let [m (ref 0 :min-history 2)]
+        (dotimes [_ 100] (dosync (alter m inc)))
+        (is (= 2 (ref-history-count m)))))
+    (testing "min-history is kept by readers of an idle ref"
+      (let [m (ref 0 :min-history 2)
+            other (ref 0)]
+        (dotimes [_ 3] (dosync (alter m inc)))
+        ;; more commits than Ref.IDLE_POINTS
+        (dotimes [_ (inc (bit-shift-left 1 16))] (dosync (alter other inc)))
+        (is (= 3 (dosync @m)))
+        (is (= 2 (ref-history-count m)))))))
+
+(deftest combined-commutes
+  (let [counter (ref 0)
+        m (ref {})
+        workers (doall (for [t (range 4)]
+                         (future (dotimes [i 100]
+                                   (dosync
+                                     (dotimes [_ 10] (commute counter + 1))
+                                     (commute m merge {[t i] 1})
+                                     (commute m merge {:last t}))))))]
+    (doseq [w workers] @w)
+    (is (= 4000 @counter))
+    (is (= 401 (count @m))))
+  (testing "in-transaction values still reflect every commute"
+    (let [r (ref 1)]
+      (is (= [2 4 5] (dosync [(commute r + 1) (commute r + 2) (commute r max 5)])))
+      (is (= 5 @r))))
+  (testing "fns without a combiner aren't combined"
+    (let [r (ref [])]
+      (dosync (commute r conj 1) (commute r conj 2))
+      (is (= [1 2] @r)))))
+
+(defn- nested-conflict
+  "Runs a transaction whose nested sync conflicts with another commit on its
+  first run. Returns [outer-runs inner-runs result]."
+  []
+  (let [a (ref 1)
+        b (ref 10)
+        outer (atom 0)
+        inner (atom 0)
+        result (dosync
+                 (swap! outer inc)
+                 (let [x @a
+                       y (dosync
+                           (swap! inner inc)
+                           (when (= 1 @inner)
+                             @(future (dosync (alter b inc))))
+                           (alter b + x))]
+                   [x y]))]
+    [@outer @inner result]))
+
+(deftest closed-nesting
+  (testing "once nesting is seen at a site, a conflict in the nested sync retries just that"
+    (nested-conflict)
+    (is (= [1 2 [1 12]] (nested-conflict))))
+  (testing "a conflict on a ref read before the nested sync retries everything"
+    (let [a (ref 1)
+          outer (atom 0)
+          f #(dosync
+               (swap! outer inc)
+               (let [x @a]
+                 (dosync
+                   (when (= 1 @outer)
+                     @(future (dosync (alter a inc))))
+                   (alter a + x))))]
+      (f)
+      (reset! outer 0)
+      (dosync (ref-set a 1))
+      (f)
+      (is (= 2 @outer))
+      (is (= 4 @a)))))
+
+(deftest blocking-retry
+  (testing "retry waits until a ref read changes"
+    (let [q (ref [])
+          taken (future (dosync
+                          (if (empty? @q)
+                            (retry)
+                            (let [x (first @q)]
+                              (alter q subvec 1)
+                              x))))]
+      (Thread/sleep 50)
+      (is (not (realized? taken)))
+      (dosync (alter q conj :a :b))
+      (is (= :a (deref taken 1000 :timeout)))
+      (is (= [:b] @q))))
+  (testing "or-else undoes an alternative that retries and runs the next"
+    (let [a (ref 0)
+          b (ref 0)]
+      (is (= :b (dosync (or-else (do (alter a inc) (retry))
+                                 (do (alter b inc) :b)))))
+      (is (= [0 1] [@a @b]))))
+  (testing "when every alternative retries, it waits on the refs of all of them"
+    (let [a (ref nil)
+          b (ref nil)
+          took (future (dosync (or-else (or @a (retry))
+                                        (or @b (retry)))))]
+      (Thread/sleep 50)
+      (is (not (realized? took)))
+      (dosync (ref-set b :b))
+      (is (= :b (deref took 1000 :timeout)))))
+  (testing "an alternative that wrote before retrying doesn't keep the others from being waited on"
+    (let [a (ref 0)
+          b (ref nil)
+          took (future (dosync (or-else (do (alter a inc) (retry))
+                                        (or @b (retry)))))]
+      (Thread/sleep 50)
+      (is (not (realized? took)))
+      (dosync (ref-set b :b))
+      (is (= :b (deref took 1000 :timeout)))
+      (is (= 0 @a))))
+  (testing "writers don't wait on a ref only an undone alternative wrote"
+    (let [a (ref 0)
+          claimed (promise)
+          go-on (promise)
+          holder (future (dosync (or-else (do (alter a inc) (retry)) :b)
+                                 (deliver claimed true)
+                                 @go-on))
+          _ @claimed
+          writer (future (dosync (alter a inc)))]
+      (is (= 1 (deref writer 500 :timeout)))
+      (deliver go-on true)
+      @holder
+      (is (= 1 @a))))
+  (testing "retry needs a transaction"
+    (is (thrown? IllegalStateException (retry)))))
+
+;; for settings read once per JVM, and for tests that shut down the agent executors
+(defn- eval-in-jvm
+  [props form]
+  (apply sh/sh (concat [(str (System/getProperty "java.home") "/bin/java")]
+                       (for [[k v] props] (str "-D" k "=" v))
+                       ["-cp" (System/getProperty "java.class.path")
+                        "clojure.main" "-e" (pr-str form)])))
+
+(deftest async-watches
+  (let [r (ref 0 :async-watches true)
+        seen (atom [])
+        done (promise)]
+    (add-watch r :slow (fn [_ _ old new]
+                         (Thread/sleep 20)
+                         (swap! seen conj [old new])
+                         (when (= 10 new) (deliver done true))))
+    (let [start (System/nanoTime)]
+      (dotimes [_ 10] (dosync (alter r inc)))
+      (testing "commits don't wait for the watches"
+        (is (< (- (System/nanoTime) start) 100000000))))
+    (testing "each change is seen once, in commit order"
+      (is (deref done 2000 false))
+      (is (= (map vector (range 10) (range 1 11)) @seen))))
+  (testing "watches are synchronous by default"
+    (let [r (ref 0)
+          seen (atom nil)]
+      (add-watch r :w (fn [_ _ _ new] (reset! seen new)))
+      (dosync (ref-set r 1))
+      (is (= 1 @seen))))
+  (testing "a commit is whole even if the watches can't be started"
+    (let [{:keys [exit out err]}
+          (eval-in-jvm {}
+                       '(let [x (ref 0 :async-watches true)
+                              y (ref 0)]
+                          (add-watch x :w (fn [& _]))
+                          (shutdown-agents)
+                          (try
+                            (dosync (alter x inc) (alter y inc))
+                            (catch java.util.concurrent.RejectedExecutionException e nil))
+                          (prn [@x @y])))]
+      (is (= 0 exit) err)
+      (is (= [1 1] (read-string out))))))
+
+(deftest batches
+  (let [refs (vec (repeatedly 10 #(ref 0)))
+        total (ref 0)
+        fns (for [i (range 1000)]
+              #(let [r (refs (mod i 10))]
+                 (alter total inc)
+                 (alter r inc)))]
+    (is (= (mapcat (fn [i] (repeat 10 (inc i))) (range 100))
+           (sort (sync-batch fns))))
+    (is (= 1000 @total))
+    (is (every? #(= 100 @%) refs)))
+  (testing "a fn that throws doesn't keep the others from committing"
+    (let [r (ref 0)
+          fns (for [i (range 200)]
+                #(if (= i 70)
+                   (throw (ex-info "boom" {}))
+                   (alter r inc)))]
+      (is (thrown-with-msg? clojure.lang.ExceptionInfo #"boom" (sync-batch fns)))
+      (is (= 199 @r))))
+  (testing "a write a validator rejects doesn't keep the others from committing"
+    (let [rs (vec (repeatedly 200 #(ref 0 :validator (fn [v] (not= v :bad)))))
+          fns (for [i (range 200)]
+                #(ref-set (rs i) (if (= i 70) :bad 1)))]
+      (is (thrown? IllegalStateException (sync-batch fns)))
+      (is (= 199 (count (filter #(= 1 @%) rs))))))
+  (testing "an exception after a group committed doesn't run its fns again"
+    (let [r (ref 0)]
+      (add-watch r :fails (fn [_ _ _ _] (throw (ex-info "watch" {}))))
+      (is (thrown-with-msg? clojure.lang.ExceptionInfo #"watch"
+                            (sync-batch (repeat 200 #(alter r inc)))))
+      (is (= 200 @r))))
+  (testing "in a transaction, the batch is part of it"
+    (let [r (ref 0)]
+      (is (= [1 2] (dosync (sync-batch [#(alter r inc) #(alter r inc)]))))
+      (is (= 2 @r)))))
+
+(deftest commit-lock-order
+  (reset-conflict-stats!)
+  (let [refs (vec (repeatedly 6 #(ref 0)))
+        n 300
+        writers (doall
+                  (for [order [refs (rseq refs)]]
+                    (future
+                      (dotimes [_ n]
+                        (dosync
+                          (doseq [[i r] (map-indexed vector order)]
+                            (if (even? i)
+                              (alter r inc)
+                              (commute r inc))))))))]
+    (doseq [w writers] @w)
+    (is (every? #(= (* 2 n) @%) refs))
+    (testing "overlapping write sets commit without lock timeouts"
+      (is (every? #(zero? (:lock-timeouts (conflict-stats %))) refs)))))
+
+(deftest validated-ensures
+  (testing "a write to an ensured ref makes the transaction retry at commit"
+    (let [a (ref 0)
+          b (ref 0)
+          runs (atom 0)]
+      (sync {:validate-ensures true}
+        (swap! runs inc)
+        (let [x (ensure a)]
+          (when (= 1 @runs)
+            ;; with a read lock on a, this writer would wait for us
+            @(future (dosync (alter a inc))))
+          (alter b + x)))
+      (is (= 2 @runs))
+      (is (= [1 1] [@a @b]))))
+  (testing "writers aren't blocked by an ensure"
+    (let [a (ref 0)
+          ensured (promise)
+          release (promise)
+          reader (future (sync {:validate-ensures true}
+                           (ensure a)
+                           (deliver ensured true)
+                           @release))]
+      @ensured
+      (let [start (System/nanoTime)]
+        (dosync (alter a inc))
+        (is (< (- (System/nanoTime) start) 50000000)))
+      (deliver release true)
+      @reader
+      (is (= 1 @a)))))
+
+(deftest memoized-derefs
+  (let [r (ref {:a 1 :b 2})
+        calls (atom 0)
+        index (fn [m] (swap! calls inc) (set (vals m)))]
+    (testing "derived once per value"
+      (is (= [#{1 2} #{1 2} #{1 2 3}]
+             (dosync [(memo-deref r index)
+                      (memo-deref r index)
+                      (do (alter r assoc :c 3)
+                          (memo-deref r index))])))
+      (is (= 2 @calls)))
+    (testing "dropped on retry unless kept"
+      (doseq [[flags expected] [[nil 2] [{:keep-memos true} 1]]]
+        (reset! calls 0)
+        (let [runs (atom 0)
+              other (ref 0)]
+          (sync flags
+            (memo-deref r index)
+            (when (= 1 (swap! runs inc))
+              @(future (dosync (alter other inc))))
+            (alter other inc))
+          (is (= expected @calls) (str flags)))))))
+
+(deftest derived-refs
+  (let [people (ref {})
+        by-city (derived-ref #(group-by :city (vals %)) [people])
+        counts (derived-ref (fn [groups] (into {} (for [[k v] groups] [k (count v)])))
+                            [by-city])
+        total (derived-ref (fn [ps] (count ps)) [people]
+                           :update (fn [n [before] [after]]
+                                     (+ n (- (count after) (count before)))))]
+    (dosync (alter people assoc 1 {:name "a" :city :x}))
+    (testing "computed on commit, through other derived refs"
+      (is (= {:x 1} @counts))
+      (is (= 1 @total)))
+    (testing "reads in a transaction see its own changes to the sources"
+      (is (= [{:x 1 :y 1} 2]
+             (dosync
+               (alter people assoc 2 {:name "b" :city :y})
+               [@counts @total]))))
+    (testing "consistent with the sources under concurrent writers"
+      (let [writers (doall (for [t (range 4)]
+                             (future (dotimes [i 50]
+                                       (dosync (alter people assoc [t i] {:city t}))))))]
+        (doseq [w writers] @w)
+        (is (= 202 @total (count @people)))
+        (is (dosync (= @total (reduce + (vals @counts)) (count @people))))))
+    (testing "derived refs can't be written"
+      (is (thrown? IllegalStateException (dosync (ref-set total 0))))
+      (is (thrown? IllegalStateException (dosync (commute total inc))))))
+  (testing "a derived ref can be ensured while writing its source"
+    (let [a (ref 1)
+          d (derived-ref inc [a])
+          result (future (dosync (ensure d) (alter a inc)))]
+      (is (= 2 (deref result 1000 :timeout)))
+      (is (= 3 @d)))))
+
+(deftest pinned-snapshots
+  (let [refs (vec (repeatedly 20 #(ref 0 :max-history 1)))
+        stop (promise)
+        writer (future
+                 (while (not (realized? stop))
+                   (dosync (doseq [r refs] (alter r inc)))))
+        attempts (atom 0)]
+    (Thread/sleep 20)
+    (let [vals (sync {:snapshot true}
+                 (swap! attempts inc)
+                 (doall (for [r refs]
+                          (do (Thread/sleep 5) @r))))]
+      (deliver stop true)
+      @writer
+      (testing "a snapshot sees one point in time, without retrying"
+        (is (apply = vals))
+        (is (= 1 @attempts))))
+    (testing "history goes back to normal once the snapshot is done"
+      (dosync (doseq [r refs] (alter r inc)))
+      (is (every? #(<= (ref-history-count %) 1) refs)))
+    (testing "snapshots can't write"
+      (is (thrown? IllegalStateException (sync {:snapshot true} (alter (refs 0) inc)))))))
+
+;; the stripes are set up once per JVM, so striped locks are tested in a JVM of their own
+(deftest striped-locks
+  (let [{:keys [exit out err]}
+        (eval-in-jvm {"clojure.stm.lock-stripes" 2}
+                     '(let [refs (vec (repeatedly 8 #(ref 0)))
+                            total (ref 0)
+                            work (fn [i]
+                                   (dotimes [_ 500]
+                                     (let [a (refs (mod i 8))
+                                           b (refs (mod (+ i 3) 8))]
+                                       (dosync (ensure a) (alter b inc) (commute total inc))
+                                       (sync {:validate-ensures true}
+                                         (ensure b) (alter a inc) (commute total inc)))))
+                            fs (mapv #(future (work %)) (range 8))]
+                        (doseq [f fs] @f)
+                        (prn [(reduce + (map deref refs)) @total])
+                        (shutdown-agents)))]
+    (is (= 0 exit) err)
+    (is (= [8000 8000] (read-string out)))))
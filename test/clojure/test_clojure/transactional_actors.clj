@@ -371,3 +371,178 @@
     (is (= n @n-third))
     (doseq [t thirds]
       (test-with-promise t :get 1 100))))
+
+(deftest adaptive-delivery
+  "Every message sent in a transaction is delivered exactly once, whether it
+  was delivered eagerly or deferred until commit."
+  (let [n 100
+        n-send (ref 0)                                      ; contentious
+        receiver (behavior
+                   [i]
+                   [msg & args]
+                   (case msg
+                     :inc
+                     (become :same (inc i))
+                     :get
+                     (deliver (first args) i)))
+        rcv (spawn receiver 0)
+        sender (behavior
+                 []
+                 [p]
+                 (dosync
+                   (send rcv :inc)
+                   (alter n-send inc))
+                 (deliver p true))
+        senders (doall (repeatedly n #(spawn sender)))]
+    (send-promises-and-wait senders)
+    (is (= n @n-send))
+    (test-with-promise rcv :get n 1000)
+    (let [stats (delivery-stats rcv)]
+      (is (<= n (+ (:eager-sends stats) (:deferred-sends stats))))
+      (is (<= (:aborted-turns stats) (:tentative-turns stats)))))
+  (let [n 100
+        counter (behavior
+                  [i]
+                  [msg & args]
+                  (case msg
+                    :inc (become :same (inc i))
+                    :get (deliver (first args) i)))]
+    (testing "uncontended receivers get their messages eagerly"
+      (let [rcv (spawn counter 0)]
+        (dotimes [_ n]
+          (dosync (send rcv :inc)))
+        (test-with-promise rcv :get n 1000)
+        (is (pos? (:eager-sends (delivery-stats rcv))))))
+    (testing "receivers that keep waiting on their senders get their messages on commit"
+      (let [rcv (spawn counter 0)]
+        (dotimes [_ n]
+          (dosync
+            (send rcv :inc)
+            ;; the receiver's tentative turn waits for this transaction
+            (Thread/sleep 5)))
+        (test-with-promise rcv :get n 1000)
+        (let [{:keys [eager-sends deferred-sends]} (delivery-stats rcv)]
+          (is (< eager-sends deferred-sends)))))))
+
+(deftest actor-cells
+  "Writes to an actor cell are undone when the transaction that made them
+  does not commit."
+  (let [n 100
+        contentious-ref (ref 0)
+        counter (behavior
+                  [c]
+                  [msg & args]
+                  (case msg
+                    :inc
+                    (dosync
+                      (cell-swap! c inc)
+                      (alter contentious-ref inc))
+                    :fail
+                    (try
+                      (dosync
+                        (cell-swap! c inc)
+                        (throw (Exception. "fail")))
+                      (catch Exception e nil))
+                    :get
+                    (deliver (first args) @c)))
+        counters (doall (repeatedly n #(spawn counter (actor-cell 0))))]
+    (doseq [c counters]
+      (send c :inc)
+      (send c :fail)
+      (send c :inc))
+    (doseq [c counters]
+      (test-with-promise c :get 2 1000))
+    (is (= (* 2 n) @contentious-ref))))
+
+(deftest actor-cell-owner
+  "An actor cell belongs to the first actor that uses it."
+  (let [c (actor-cell 0)
+        a (spawn (behavior [] [msg p] (deliver p (cell-swap! c inc))))]
+    (test-with-promise a :inc 1 1000)
+    (is (thrown? IllegalStateException @c))))
+
+(deftest suspended-turn
+  "A turn whose transaction calls retry suspends the actor until a ref it
+  read changes, and keeps its other messages waiting meanwhile."
+  (let [q (ref [])
+        seen (atom [])
+        consumer (spawn (behavior
+                          []
+                          [msg & args]
+                          (case msg
+                            :take
+                            (let [x (dosync
+                                      (if (empty? @q)
+                                        (retry)
+                                        (let [x (first @q)]
+                                          (alter q subvec 1)
+                                          x)))]
+                              (swap! seen conj x))
+                            :get
+                            (deliver (first args) @seen))))]
+    (send consumer :take)
+    (let [p (promise)]
+      (send consumer :get p)
+      (is (= :pending (deref p 100 :pending)))
+      (dosync (alter q conj 1))
+      (is (= [1] (deref p 1000 :timeout))))))
+
+(deftest suspended-turn-replay
+  "A suspended turn runs again under the behavior and cell values it
+  started with. A turn that already sent a message, sent to an agent
+  or spawned an actor blocks instead of running again."
+  (let [q (ref nil)
+        c (actor-cell 0)
+        a (spawn (behavior
+                   [n]
+                   [p]
+                   (cell-reset! c (inc @c))
+                   (become :same (inc n))
+                   (let [x (dosync (or @q (retry)))]
+                     (deliver p [n @c x])))
+                 0)
+        p (promise)]
+    (send a p)
+    (is (= :pending (deref p 100 :pending)))
+    (dosync (ref-set q 1))
+    (is (= [0 1 1] (deref p 1000 :timeout))))
+  (let [q (ref nil)
+        received (atom 0)
+        counter (spawn (behavior [] [] (swap! received inc)))
+        a (spawn (behavior
+                   []
+                   [p]
+                   (send counter)
+                   (deliver p (dosync (or @q (retry))))))
+        p (promise)]
+    (send a p)
+    (is (= :pending (deref p 100 :pending)))
+    (dosync (ref-set q 1))
+    (is (= 1 (deref p 1000 :timeout)))
+    (is (await-actors 1000))
+    (is (= 1 @received)))
+  (let [q (ref nil)
+        runs (atom 0)
+        ag (agent 0)
+        spawner (spawn (behavior
+                         []
+                         [p]
+                         (swap! runs inc)
+                         (spawn (behavior [] []))
+                         (deliver p (dosync (or @q (retry))))))
+        sender (spawn (behavior
+                        []
+                        [p]
+                        (send ag inc)
+                        (deliver p (dosync (or @q (retry))))))
+        p1 (promise)
+        p2 (promise)]
+    (send spawner p1)
+    (send sender p2)
+    (is (= :pending (deref p1 100 :pending)))
+    (dosync (ref-set q 1))
+    (is (= 1 (deref p1 1000 :timeout)))
+    (is (= 1 (deref p2 1000 :timeout)))
+    (is (= 1 @runs))
+    (is (await-for 1000 ag))
+    (is (= 1 @ag))))